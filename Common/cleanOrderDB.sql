@@ -5,4 +5,4 @@ DELETE FROM CUSTOMER;
 DELETE FROM PRODUCT;
 DELETE FROM CATEGORY;
 DELETE FROM PROD_CAT;
-
+DELETE FROM CATALOG_CHANGE;
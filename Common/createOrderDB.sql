@@ -85,6 +85,10 @@ DROP TABLE FAVORITES;
 
 DROP TABLE CREDIT_INFO;
 
+DROP TABLE CATALOG_CHANGE;
+
+DROP SEQUENCE ORDER_ID_SEQ;
+
 
 -------------------------------------------------- CREATE TABLES --
 
@@ -168,7 +172,7 @@ CREATE TABLE LINE_ITEM  (
 
 CREATE TABLE ORDERS  (
 
-		  ORDER_ID INTEGER NOT NULL GENERATED ALWAYS AS IDENTITY, 
+		  ORDER_ID INTEGER NOT NULL , 
 
 		  CUSTOMER_ID INTEGER NOT NULL , 
 
@@ -221,6 +225,22 @@ CREATE TABLE CONTACT_NUMBERS
      PHONE VARCHAR(15) NOT NULL
 );
 
+-- One row per change to PRODUCT, CATEGORY or PROD_CAT, written by the
+-- triggers below and polled by every application server to invalidate
+-- its in-memory catalog. ENTITY_TYPE is 'P' for a product, ENTITY_ID then
+-- being the PRODUCT_ID, or 'C' for a category.
+CREATE TABLE CATALOG_CHANGE (
+	CHANGE_ID BIGINT NOT NULL GENERATED ALWAYS AS IDENTITY PRIMARY KEY,
+	ENTITY_TYPE CHAR(1) NOT NULL,
+	ENTITY_ID INTEGER NOT NULL,
+	CHANGED_AT TIMESTAMP NOT NULL WITH DEFAULT CURRENT TIMESTAMP
+);
+
+-- Order ids are handed out by each application server in blocks of 50,
+-- the increment, from one NEXTVAL; the increment must match the block
+-- size of OrderIdGenerator.
+CREATE SEQUENCE ORDER_ID_SEQ AS INTEGER START WITH 1 INCREMENT BY 50 NO CYCLE CACHE 20;
+
 ------------------------------------------------ DEFINE PRIMARY/FOREIGN KEYS --
 
 
@@ -316,6 +336,10 @@ ALTER TABLE PROD_CAT
 	REFERENCES CATEGORY
 
 		(CAT_ID);
+
+CREATE INDEX PC_CAT_PROD ON PROD_CAT (CAT_ID, PRODUCT_ID);
+CREATE INDEX CUSTOMER_USER ON CUSTOMER (USERNAME, CUSTOMER_ID);
+CREATE INDEX ORDERS_HISTORY ON ORDERS (CUSTOMER_ID, SUBMIT_TIME DESC, ORDER_ID DESC);
 		
 		ALTER TABLE CONTACT_NUMBERS ADD CONSTRAINT CN FOREIGN KEY(CUSTOMER_ID) REFERENCES CUSTOMER(CUSTOMER_ID);
 
@@ -329,3 +353,35 @@ ALTER TABLE ORDERS
 	ADD CONSTRAINT STATUS_ENUMERATION CHECK 
 
 		(STATUS IN ('OPEN', 'SUBMITTED','CLOSED','SHIPPED'));
+
+---------------------------------------------- CATALOG CHANGE TRIGGERS --
+
+CREATE TRIGGER PRODUCT_INS AFTER INSERT ON PRODUCT REFERENCING NEW AS N FOR EACH ROW MODE DB2SQL
+	INSERT INTO CATALOG_CHANGE (ENTITY_TYPE, ENTITY_ID) VALUES ('P', N.PRODUCT_ID);
+
+CREATE TRIGGER PRODUCT_UPD AFTER UPDATE ON PRODUCT REFERENCING NEW AS N FOR EACH ROW MODE DB2SQL
+	INSERT INTO CATALOG_CHANGE (ENTITY_TYPE, ENTITY_ID) VALUES ('P', N.PRODUCT_ID);
+
+CREATE TRIGGER PRODUCT_DEL AFTER DELETE ON PRODUCT REFERENCING OLD AS O FOR EACH ROW MODE DB2SQL
+	INSERT INTO CATALOG_CHANGE (ENTITY_TYPE, ENTITY_ID) VALUES ('P', O.PRODUCT_ID);
+
+CREATE TRIGGER CATEGORY_INS AFTER INSERT ON CATEGORY REFERENCING NEW AS N FOR EACH ROW MODE DB2SQL
+	INSERT INTO CATALOG_CHANGE (ENTITY_TYPE, ENTITY_ID) VALUES ('C', N.CAT_ID);
+
+CREATE TRIGGER CATEGORY_UPD AFTER UPDATE ON CATEGORY REFERENCING NEW AS N FOR EACH ROW MODE DB2SQL
+	INSERT INTO CATALOG_CHANGE (ENTITY_TYPE, ENTITY_ID) VALUES ('C', N.CAT_ID);
+
+CREATE TRIGGER CATEGORY_DEL AFTER DELETE ON CATEGORY REFERENCING OLD AS O FOR EACH ROW MODE DB2SQL
+	INSERT INTO CATALOG_CHANGE (ENTITY_TYPE, ENTITY_ID) VALUES ('C', O.CAT_ID);
+
+CREATE TRIGGER PROD_CAT_INS AFTER INSERT ON PROD_CAT REFERENCING NEW AS N FOR EACH ROW MODE DB2SQL
+	WHEN (N.PRODUCT_ID IS NOT NULL)
+	INSERT INTO CATALOG_CHANGE (ENTITY_TYPE, ENTITY_ID) VALUES ('P', N.PRODUCT_ID);
+
+CREATE TRIGGER PROD_CAT_UPD AFTER UPDATE ON PROD_CAT REFERENCING OLD AS O NEW AS N FOR EACH ROW MODE DB2SQL
+	INSERT INTO CATALOG_CHANGE (ENTITY_TYPE, ENTITY_ID)
+		SELECT 'P', T.ID FROM (VALUES (O.PRODUCT_ID), (N.PRODUCT_ID)) AS T(ID) WHERE T.ID IS NOT NULL;
+
+CREATE TRIGGER PROD_CAT_DEL AFTER DELETE ON PROD_CAT REFERENCING OLD AS O FOR EACH ROW MODE DB2SQL
+	WHEN (O.PRODUCT_ID IS NOT NULL)
+	INSERT INTO CATALOG_CHANGE (ENTITY_TYPE, ENTITY_ID) VALUES ('P', O.PRODUCT_ID);
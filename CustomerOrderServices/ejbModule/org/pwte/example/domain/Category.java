@@ -10,6 +10,7 @@ import javax.persistence.Id;
 import javax.persistence.JoinColumn;
 import javax.persistence.ManyToMany;
 import javax.persistence.ManyToOne;
+import javax.persistence.NamedQueries;
 import javax.persistence.NamedQuery;
 import javax.persistence.OneToMany;
 
@@ -17,7 +18,10 @@ import org.codehaus.jackson.annotate.JsonIgnore;
 import org.codehaus.jackson.annotate.JsonProperty;
 
 @Entity
-@NamedQuery(name="top.level.category",query="select c from Category c where c.parent IS NULL")
+@NamedQueries({
+	@NamedQuery(name="top.level.category",query="select c from Category c where c.parent IS NULL"),
+	@NamedQuery(name="category.tree",query="select c.categoryID, c.name, p.categoryID from Category c left join c.parent p order by c.categoryID")
+})
 public class Category implements Serializable {
 	
 	private static final long serialVersionUID = -2872694133550658771L;
@@ -0,0 +1,103 @@
+package org.pwte.example.domain;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The products matching a faceted catalog query, plus how many products each
+ * category and each price bucket would match if it were selected.
+ */
+public class FacetResult implements Serializable {
+
+	private static final long serialVersionUID = 6279542000571640716L;
+
+	public static class PriceBucket implements Serializable {
+
+		private static final long serialVersionUID = -2014880964364632163L;
+
+		protected BigDecimal min;
+		protected BigDecimal max;
+		protected int count;
+
+		public PriceBucket() {
+
+		}
+
+		public PriceBucket(BigDecimal min, BigDecimal max, int count) {
+			this.min = min;
+			this.max = max;
+			this.count = count;
+		}
+
+		public BigDecimal getMin() {
+			return min;
+		}
+
+		public void setMin(BigDecimal min) {
+			this.min = min;
+		}
+
+		/**
+		 * @return the exclusive upper bound, null for the last bucket
+		 */
+		public BigDecimal getMax() {
+			return max;
+		}
+
+		public void setMax(BigDecimal max) {
+			this.max = max;
+		}
+
+		public int getCount() {
+			return count;
+		}
+
+		public void setCount(int count) {
+			this.count = count;
+		}
+
+	}
+
+	protected List<Product> products;
+	protected int total;
+	protected Map<Integer, Integer> categoryCounts;
+	protected List<PriceBucket> priceBuckets;
+
+	public List<Product> getProducts() {
+		return products;
+	}
+
+	public void setProducts(List<Product> products) {
+		this.products = products;
+	}
+
+	public int getTotal() {
+		return total;
+	}
+
+	public void setTotal(int total) {
+		this.total = total;
+	}
+
+	/**
+	 * @return category id to number of matching products in its subtree
+	 */
+	public Map<Integer, Integer> getCategoryCounts() {
+		return categoryCounts;
+	}
+
+	public void setCategoryCounts(Map<Integer, Integer> categoryCounts) {
+		this.categoryCounts = categoryCounts;
+	}
+
+	public List<PriceBucket> getPriceBuckets() {
+		return priceBuckets;
+	}
+
+	public void setPriceBuckets(List<PriceBucket> priceBuckets) {
+		this.priceBuckets = priceBuckets;
+	}
+
+}
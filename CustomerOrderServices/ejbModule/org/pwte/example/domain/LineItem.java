@@ -10,9 +10,8 @@ import javax.persistence.Id;
 import javax.persistence.IdClass;
 import javax.persistence.JoinColumn;
 import javax.persistence.ManyToOne;
-import javax.persistence.PrePersist;
-import javax.persistence.PreRemove;
-import javax.persistence.PreUpdate;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
 import javax.persistence.Table;
 import javax.persistence.Transient;
 
@@ -21,6 +20,13 @@ import org.codehaus.jackson.annotate.JsonIgnore;
 @Entity
 @Table(name = "LINE_ITEM")
 @IdClass(LineItemId.class)
+@NamedQueries({
+	@NamedQuery(name="lineitem.product.popularity",query="select li.productId, sum(li.quantity) from LineItem li group by li.productId"),
+	@NamedQuery(name="lineitem.open.quantities",query="select c.customerId, li.productId, li.quantity from LineItem li join li.order o join o.customer c where o.status = :status"),
+	@NamedQuery(name="lineitem.by.order",query="select li.productId, li.quantity, li.amount, p.name, p.price, p.description, p.imagePath "
+			+ "from LineItem li join li.product p join li.order o join o.customer c "
+			+ "where li.orderId = :orderId and c.customerId = :customerId and c.user = :user order by li.productId")
+})
 public class LineItem implements Serializable {
 
 	private static final long serialVersionUID = -447939565773238603L;
@@ -96,45 +102,6 @@ public class LineItem implements Serializable {
 		this.order = order;
 	}
 
-	@PrePersist
-	void calculateTotalAdd() {
-		System.out.println("Adding new LI -> " + product.getName());
-		BigDecimal total = new BigDecimal(0);
-		if (getOrder() != null)
-			total = getOrder().getTotal();
-		System.out.println("Old total " + total);
-		System.out.println("Adding new -> " + amount);
-		total = total.add(amount).setScale(2, BigDecimal.ROUND_HALF_UP);
-		System.out.println("Total in CallBack -> " + total);
-		order.setTotal(total);
-	}
-
-	@PreUpdate
-	void recalculateTotal() {
-		System.out.println("PreUpdate -> " + product.getName());
-		BigDecimal total = new BigDecimal(0);
-		if (getOrder().getLineitems().size() <= 0)
-			return;
-		boolean inOrders = false;
-		for (LineItem item : getOrder().getLineitems()) {
-			if (item.equals(this))
-				inOrders = true;
-			System.out.println("recalc -> " + item.getAmount());
-			total = total.add(item.getAmount()).setScale(2, BigDecimal.ROUND_HALF_UP);
-		}
-		System.out.println("New Total recalc -> " + total);
-		if (inOrders)
-			order.setTotal(total);
-	}
-
-	@PreRemove
-	void calculateTotalRemove() {
-		System.out.println("Removing LI -> " + product.getName());
-		BigDecimal total = getOrder().getTotal();
-		total = total.subtract(amount).setScale(2, BigDecimal.ROUND_HALF_UP);
-		order.setTotal(total);
-	}
-
 	@JsonIgnore
 	public void setVersion(long version) {
 		this.version = version;
@@ -0,0 +1,53 @@
+package org.pwte.example.domain;
+
+import java.io.Serializable;
+
+/**
+ * One operation of a batch change to the open order: add a quantity of a
+ * product, remove its line, or set the quantity of its line outright.
+ */
+public class LineItemChange implements Serializable {
+
+	private static final long serialVersionUID = 6005930412842281652L;
+
+	public static enum Operation { ADD, REMOVE, SET_QUANTITY }
+
+	protected Operation operation;
+	protected int productId;
+	protected long quantity;
+
+	public LineItemChange() {
+
+	}
+
+	public LineItemChange(Operation operation, int productId, long quantity) {
+		this.operation = operation;
+		this.productId = productId;
+		this.quantity = quantity;
+	}
+
+	public Operation getOperation() {
+		return operation;
+	}
+
+	public void setOperation(Operation operation) {
+		this.operation = operation;
+	}
+
+	public int getProductId() {
+		return productId;
+	}
+
+	public void setProductId(int productId) {
+		this.productId = productId;
+	}
+
+	public long getQuantity() {
+		return quantity;
+	}
+
+	public void setQuantity(long quantity) {
+		this.quantity = quantity;
+	}
+
+}
@@ -3,17 +3,20 @@ package org.pwte.example.domain;
 import java.io.Serializable;
 import java.math.BigDecimal;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
 import javax.persistence.CascadeType;
 import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.FetchType;
-import javax.persistence.GeneratedValue;
-import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.JoinColumn;
 import javax.persistence.ManyToOne;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
 import javax.persistence.OneToMany;
 import javax.persistence.Table;
 import javax.persistence.Version;
@@ -22,12 +25,23 @@ import org.codehaus.jackson.annotate.JsonIgnore;
 
 @Entity
 @Table(name="ORDERS")
+@NamedQueries({
+	@NamedQuery(name="order.history",query="select o.orderId, o.status, o.submittedTime, o.total, count(li.productId) from Order o left join o.lineitems li join o.customer c "
+			+ "where c.customerId = :customerId and c.user = :user and o.submittedTime is not null "
+			+ "group by o.orderId, o.status, o.submittedTime, o.total order by o.submittedTime desc, o.orderId desc"),
+	@NamedQuery(name="order.history.after",query="select o.orderId, o.status, o.submittedTime, o.total, count(li.productId) from Order o left join o.lineitems li join o.customer c "
+			+ "where c.customerId = :customerId and c.user = :user and o.submittedTime is not null "
+			+ "and (o.submittedTime < :submittedTime or (o.submittedTime = :submittedTime and o.orderId < :orderId)) "
+			+ "group by o.orderId, o.status, o.submittedTime, o.total order by o.submittedTime desc, o.orderId desc"),
+	@NamedQuery(name="order.exists",query="select count(o) from Order o join o.customer c where o.orderId = :orderId and c.customerId = :customerId and c.user = :user"),
+	@NamedQuery(name="order.status",query="select o.status, o.submittedTime from Order o join o.customer c where o.orderId = :orderId and c.customerId = :customerId and c.user = :user")
+})
 public class Order implements Serializable {
 	
 	private static final long serialVersionUID = -7488064826451093257L;
 	
+	/* Assigned from OrderIdGenerator before the order is persisted */
 	@Id
-	@GeneratedValue(strategy=GenerationType.IDENTITY)
 	@Column(name="ORDER_ID")
 	protected int orderId;
 	protected BigDecimal total;
@@ -46,6 +60,10 @@ public class Order implements Serializable {
 	  
 	@Version
 	protected long version;
+	
+	/* lineitems keyed by product id, rebuilt whenever it no longer matches the collection */
+	private transient Map<Integer, LineItem> lineItemsByProduct;
+	private transient Set<LineItem> indexedLineItems;
 	  
 	@JsonIgnore
 	public long getVersion() {
@@ -61,6 +79,52 @@ public class Order implements Serializable {
 	}
 	public void setLineitems(Set<LineItem> lineitmes) {
 		this.lineitems = lineitmes;
+		this.lineItemsByProduct = null;
+	}
+	
+	/**
+	 * The index is checked against the identity and size of the managed
+	 * collection, so it is rebuilt after JPA loads or replaces the
+	 * collection, or after it was changed other than through this class.
+	 */
+	private Map<Integer, LineItem> lineItemIndex() {
+		if(lineitems == null) lineitems = new HashSet<LineItem>();
+		if(lineItemsByProduct == null || indexedLineItems != lineitems || lineItemsByProduct.size() != lineitems.size())
+		{
+			Map<Integer, LineItem> index = new HashMap<Integer, LineItem>(lineitems.size() * 2);
+			for(LineItem lineItem:lineitems)
+			{
+				index.put(lineItem.getProductId(), lineItem);
+			}
+			lineItemsByProduct = index;
+			indexedLineItems = lineitems;
+		}
+		return lineItemsByProduct;
+	}
+	
+	/**
+	 * @return the line item for the product, or null if it is not in the order
+	 */
+	public LineItem findLineItem(int productId) {
+		return lineItemIndex().get(productId);
+	}
+	
+	/**
+	 * Adds a line item for a product that is not in the order yet.
+	 */
+	public void addLineItem(LineItem lineItem) {
+		Map<Integer, LineItem> index = lineItemIndex();
+		lineitems.add(lineItem);
+		index.put(lineItem.getProductId(), lineItem);
+	}
+	
+	/**
+	 * @return the line item removed, or null if the product was not in the order
+	 */
+	public LineItem removeLineItem(int productId) {
+		LineItem lineItem = lineItemIndex().remove(productId);
+		if(lineItem != null) lineitems.remove(lineItem);
+		return lineItem;
 	}
 	
 	@JsonIgnore
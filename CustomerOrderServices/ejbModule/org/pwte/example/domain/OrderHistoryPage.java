@@ -0,0 +1,45 @@
+package org.pwte.example.domain;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * One page of a customer's submitted orders, newest first, and the cursor
+ * to pass to get the page after it.
+ */
+public class OrderHistoryPage implements Serializable {
+
+	private static final long serialVersionUID = 2920587148817311630L;
+
+	protected List<OrderSummary> orders;
+	protected String next;
+
+	public OrderHistoryPage() {
+
+	}
+
+	public OrderHistoryPage(List<OrderSummary> orders, String next) {
+		this.orders = orders;
+		this.next = next;
+	}
+
+	public List<OrderSummary> getOrders() {
+		return orders;
+	}
+
+	public void setOrders(List<OrderSummary> orders) {
+		this.orders = orders;
+	}
+
+	/**
+	 * @return the cursor of the following page, or null if this is the last
+	 */
+	public String getNext() {
+		return next;
+	}
+
+	public void setNext(String next) {
+		this.next = next;
+	}
+
+}
@@ -0,0 +1,65 @@
+package org.pwte.example.domain;
+
+import java.io.Serializable;
+import java.util.Date;
+
+/**
+ * Which version of a customer's order history is current. The last
+ * modification time is in whole seconds and never later than now, so two
+ * changes within one second share it; the tag tells them apart.
+ */
+public class OrderHistoryVersion implements Serializable {
+
+	private static final long serialVersionUID = -4518826381946716802L;
+
+	protected Date lastModified;
+	protected String tag;
+	protected boolean lastModifiedDistinct;
+
+	public OrderHistoryVersion() {
+
+	}
+
+	public OrderHistoryVersion(Date lastModified, String tag, boolean lastModifiedDistinct) {
+		this.lastModified = lastModified;
+		this.tag = tag;
+		this.lastModifiedDistinct = lastModifiedDistinct;
+	}
+
+	/**
+	 * @return when the history last changed, to the second, or null if
+	 *         there is no history
+	 */
+	public Date getLastModified() {
+		return lastModified;
+	}
+
+	public void setLastModified(Date lastModified) {
+		this.lastModified = lastModified;
+	}
+
+	/**
+	 * @return a tag that changes with every change to the history
+	 */
+	public String getTag() {
+		return tag;
+	}
+
+	public void setTag(String tag) {
+		this.tag = tag;
+	}
+
+	/**
+	 * @return false while an earlier version of the history has the same
+	 *         last modification time, so the time cannot be used to tell
+	 *         whether a client's copy is current
+	 */
+	public boolean isLastModifiedDistinct() {
+		return lastModifiedDistinct;
+	}
+
+	public void setLastModifiedDistinct(boolean lastModifiedDistinct) {
+		this.lastModifiedDistinct = lastModifiedDistinct;
+	}
+
+}
@@ -0,0 +1,81 @@
+package org.pwte.example.domain;
+
+import java.io.Serializable;
+import java.util.Date;
+
+/**
+ * Where the submission of one order stands. An order submitted while
+ * asynchronous submission is on is QUEUED until a worker either submits it
+ * or finds it FAILED, for instance because it was changed in the meantime.
+ */
+public class OrderSubmission implements Serializable {
+
+	private static final long serialVersionUID = 3160718735219532470L;
+
+	public static enum State { OPEN, QUEUED, SUBMITTED, FAILED }
+
+	protected int orderId;
+	protected State state;
+	protected Date queuedTime;
+	protected Date submittedTime;
+	protected String reason;
+
+	public OrderSubmission() {
+
+	}
+
+	public OrderSubmission(int orderId, State state, Date queuedTime, Date submittedTime, String reason) {
+		this.orderId = orderId;
+		this.state = state;
+		this.queuedTime = queuedTime;
+		this.submittedTime = submittedTime;
+		this.reason = reason;
+	}
+
+	public int getOrderId() {
+		return orderId;
+	}
+
+	public void setOrderId(int orderId) {
+		this.orderId = orderId;
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	public void setState(State state) {
+		this.state = state;
+	}
+
+	/**
+	 * @return when the order was queued, or null if it was not
+	 */
+	public Date getQueuedTime() {
+		return queuedTime;
+	}
+
+	public void setQueuedTime(Date queuedTime) {
+		this.queuedTime = queuedTime;
+	}
+
+	public Date getSubmittedTime() {
+		return submittedTime;
+	}
+
+	public void setSubmittedTime(Date submittedTime) {
+		this.submittedTime = submittedTime;
+	}
+
+	/**
+	 * @return why the submission failed, or null
+	 */
+	public String getReason() {
+		return reason;
+	}
+
+	public void setReason(String reason) {
+		this.reason = reason;
+	}
+
+}
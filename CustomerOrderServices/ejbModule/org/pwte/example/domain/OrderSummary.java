@@ -0,0 +1,72 @@
+package org.pwte.example.domain;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.util.Date;
+
+/**
+ * An order as listed in the order history, without its line items.
+ */
+public class OrderSummary implements Serializable {
+
+	private static final long serialVersionUID = -1480373328046425470L;
+
+	protected int orderId;
+	protected Order.Status status;
+	protected Date submittedTime;
+	protected BigDecimal total;
+	protected int lineCount;
+
+	public OrderSummary() {
+
+	}
+
+	public OrderSummary(int orderId, Order.Status status, Date submittedTime, BigDecimal total, int lineCount) {
+		this.orderId = orderId;
+		this.status = status;
+		this.submittedTime = submittedTime;
+		this.total = total;
+		this.lineCount = lineCount;
+	}
+
+	public int getOrderId() {
+		return orderId;
+	}
+
+	public void setOrderId(int orderId) {
+		this.orderId = orderId;
+	}
+
+	public Order.Status getStatus() {
+		return status;
+	}
+
+	public void setStatus(Order.Status status) {
+		this.status = status;
+	}
+
+	public Date getSubmittedTime() {
+		return submittedTime;
+	}
+
+	public void setSubmittedTime(Date submittedTime) {
+		this.submittedTime = submittedTime;
+	}
+
+	public BigDecimal getTotal() {
+		return total;
+	}
+
+	public void setTotal(BigDecimal total) {
+		this.total = total;
+	}
+
+	public int getLineCount() {
+		return lineCount;
+	}
+
+	public void setLineCount(int lineCount) {
+		this.lineCount = lineCount;
+	}
+
+}
@@ -12,16 +12,19 @@ import javax.persistence.JoinColumn;
 import javax.persistence.JoinTable;
 import javax.persistence.ManyToMany;
 import javax.persistence.NamedNativeQuery;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
 
 import org.codehaus.jackson.annotate.JsonIgnore;
 import org.codehaus.jackson.annotate.JsonProperty;
 
 @Entity
-@NamedNativeQuery(name="product.by.cat.or.sub",
-		query="select distinct p.product_id,p.name,p.price,p.description,p.image from product as p,prod_cat as pc, category as c where (c.CAT_ID = ? or c.PARENT_CAT = ?) AND pc.CAT_ID = c.cat_id AND pc.PRODUCT_ID = p.PRODUCT_ID",
-		resultClass=Product.class)
-
-
+@NamedQueries({
+	@NamedQuery(name="product.summary.all",query="select p.productId, p.name, p.price, p.description, p.imagePath from Product p"),
+	@NamedQuery(name="product.summary",query="select p.productId, p.name, p.price, p.description, p.imagePath from Product p where p.productId = :productId")
+})
+@NamedNativeQuery(name="product.category.links",
+		query="select pc.product_id, pc.cat_id from prod_cat as pc")
 public class Product implements Serializable {
 
 	/**
@@ -0,0 +1,42 @@
+package org.pwte.example.domain;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * The products found for a list of ids, in the order the ids were requested,
+ * together with the ids that matched no product.
+ */
+public class ProductBatch implements Serializable {
+
+	private static final long serialVersionUID = -4471936215304467795L;
+
+	protected List<Product> products;
+	protected List<Integer> missingIds;
+
+	public ProductBatch() {
+
+	}
+
+	public ProductBatch(List<Product> products, List<Integer> missingIds) {
+		this.products = products;
+		this.missingIds = missingIds;
+	}
+
+	public List<Product> getProducts() {
+		return products;
+	}
+
+	public void setProducts(List<Product> products) {
+		this.products = products;
+	}
+
+	public List<Integer> getMissingIds() {
+		return missingIds;
+	}
+
+	public void setMissingIds(List<Integer> missingIds) {
+		this.missingIds = missingIds;
+	}
+
+}
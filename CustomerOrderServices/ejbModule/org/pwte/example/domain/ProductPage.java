@@ -0,0 +1,54 @@
+package org.pwte.example.domain;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * One page of a sorted product listing together with the position of the
+ * page and the size of the whole listing.
+ */
+public class ProductPage implements Serializable {
+
+	private static final long serialVersionUID = -3561286514964040522L;
+
+	public static enum Sort { ID, NAME, PRICE }
+
+	protected List<Product> products;
+	protected int offset;
+	protected int total;
+
+	public ProductPage() {
+
+	}
+
+	public ProductPage(List<Product> products, int offset, int total) {
+		this.products = products;
+		this.offset = offset;
+		this.total = total;
+	}
+
+	public List<Product> getProducts() {
+		return products;
+	}
+
+	public void setProducts(List<Product> products) {
+		this.products = products;
+	}
+
+	public int getOffset() {
+		return offset;
+	}
+
+	public void setOffset(int offset) {
+		this.offset = offset;
+	}
+
+	public int getTotal() {
+		return total;
+	}
+
+	public void setTotal(int total) {
+		this.total = total;
+	}
+
+}
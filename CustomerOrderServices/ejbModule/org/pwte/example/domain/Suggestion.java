@@ -0,0 +1,53 @@
+package org.pwte.example.domain;
+
+import java.io.Serializable;
+
+/**
+ * One typeahead completion: a product or category name and what it refers
+ * to.
+ */
+public class Suggestion implements Serializable {
+
+	private static final long serialVersionUID = 3419866471053307214L;
+
+	public static enum Type { PRODUCT, CATEGORY }
+
+	protected String text;
+	protected Type type;
+	protected int id;
+
+	public Suggestion() {
+
+	}
+
+	public Suggestion(String text, Type type, int id) {
+		this.text = text;
+		this.type = type;
+		this.id = id;
+	}
+
+	public String getText() {
+		return text;
+	}
+
+	public void setText(String text) {
+		this.text = text;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public void setType(Type type) {
+		this.type = type;
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public void setId(int id) {
+		this.id = id;
+	}
+
+}
@@ -0,0 +1,77 @@
+package org.pwte.example.domain;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Progress of the catalog warm-up run when the application starts.
+ */
+public class WarmupStatus implements Serializable {
+
+	private static final long serialVersionUID = -8843571264092276540L;
+
+	protected boolean ready;
+	protected String phase;
+	protected long elapsedMillis;
+	protected int attempts;
+	protected String lastFailure;
+	protected List<Integer> hotProductIds;
+
+	/**
+	 * @return true once every warm-up phase has completed
+	 */
+	public boolean isReady() {
+		return ready;
+	}
+
+	public void setReady(boolean ready) {
+		this.ready = ready;
+	}
+
+	public String getPhase() {
+		return phase;
+	}
+
+	public void setPhase(String phase) {
+		this.phase = phase;
+	}
+
+	/**
+	 * @return time spent so far, or in total once ready
+	 */
+	public long getElapsedMillis() {
+		return elapsedMillis;
+	}
+
+	public void setElapsedMillis(long elapsedMillis) {
+		this.elapsedMillis = elapsedMillis;
+	}
+
+	public int getAttempts() {
+		return attempts;
+	}
+
+	public void setAttempts(int attempts) {
+		this.attempts = attempts;
+	}
+
+	public String getLastFailure() {
+		return lastFailure;
+	}
+
+	public void setLastFailure(String lastFailure) {
+		this.lastFailure = lastFailure;
+	}
+
+	/**
+	 * @return the most ordered products, which were preloaded
+	 */
+	public List<Integer> getHotProductIds() {
+		return hotProductIds;
+	}
+
+	public void setHotProductIds(List<Integer> hotProductIds) {
+		this.hotProductIds = hotProductIds;
+	}
+
+}
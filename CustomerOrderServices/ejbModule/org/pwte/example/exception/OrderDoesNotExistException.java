@@ -0,0 +1,48 @@
+/**
+ * 
+ */
+package org.pwte.example.exception;
+
+/**
+ * The order does not exist, or does not belong to the caller.
+ */
+public class OrderDoesNotExistException extends Exception {
+
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = 4409627351872261938L;
+
+	/**
+	 * 
+	 */
+	public OrderDoesNotExistException() {
+
+	}
+
+	/**
+	 * @param message
+	 */
+	public OrderDoesNotExistException(String message) {
+		super(message);
+
+	}
+
+	/**
+	 * @param cause
+	 */
+	public OrderDoesNotExistException(Throwable cause) {
+		super(cause);
+
+	}
+
+	/**
+	 * @param message
+	 * @param cause
+	 */
+	public OrderDoesNotExistException(String message, Throwable cause) {
+		super(message, cause);
+
+	}
+
+}
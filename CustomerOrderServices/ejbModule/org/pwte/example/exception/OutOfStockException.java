@@ -0,0 +1,52 @@
+/**
+ * 
+ */
+package org.pwte.example.exception;
+
+import javax.ejb.ApplicationException;
+
+/**
+ * Not enough of a product is in stock for the quantity asked for. It rolls
+ * the transaction back, so nothing else the call changed is kept.
+ */
+@ApplicationException(rollback=true)
+public class OutOfStockException extends RuntimeException {
+
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = 7301846273055198214L;
+
+	/**
+	 * 
+	 */
+	public OutOfStockException() {
+
+	}
+
+	/**
+	 * @param message
+	 */
+	public OutOfStockException(String message) {
+		super(message);
+
+	}
+
+	/**
+	 * @param cause
+	 */
+	public OutOfStockException(Throwable cause) {
+		super(cause);
+
+	}
+
+	/**
+	 * @param message
+	 * @param cause
+	 */
+	public OutOfStockException(String message, Throwable cause) {
+		super(message, cause);
+
+	}
+
+}
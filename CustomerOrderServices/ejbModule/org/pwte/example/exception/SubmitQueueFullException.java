@@ -0,0 +1,48 @@
+/**
+ * 
+ */
+package org.pwte.example.exception;
+
+/**
+ * The submission queue is full; the order stays open and can be submitted again.
+ */
+public class SubmitQueueFullException extends Exception {
+
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = -2270935684015719436L;
+
+	/**
+	 * 
+	 */
+	public SubmitQueueFullException() {
+
+	}
+
+	/**
+	 * @param message
+	 */
+	public SubmitQueueFullException(String message) {
+		super(message);
+
+	}
+
+	/**
+	 * @param cause
+	 */
+	public SubmitQueueFullException(Throwable cause) {
+		super(cause);
+
+	}
+
+	/**
+	 * @param message
+	 * @param cause
+	 */
+	public SubmitQueueFullException(String message, Throwable cause) {
+		super(message, cause);
+
+	}
+
+}
@@ -0,0 +1,373 @@
+package org.pwte.example.service;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.SessionContext;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.ejb.Timeout;
+import javax.ejb.Timer;
+import javax.ejb.TimerConfig;
+import javax.ejb.TimerService;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.Query;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import org.pwte.example.domain.LineItem;
+import org.pwte.example.domain.Order;
+
+/**
+ * Write-behind store for open orders, used when the cartWriteBehind
+ * environment entry is set.
+ *
+ * Cart edits change only the in-memory {@link OpenCart}. Every
+ * cartFlushMillis the carts with unwritten changes are written out, one
+ * transaction per shard, with one statement for the order and one per
+ * product whose line changed since the last write, however often it
+ * changed. A customer's cart is also written before it is submitted or
+ * read through the customer, and every cart is written on shutdown.
+ *
+ * The order row is only written if its version is still the one last
+ * written or read here. If another server changed the order in between,
+ * the cart is dropped and reloaded, and the edits since the last write
+ * are lost, so this mode expects requests of one customer to stay on one
+ * server.
+ */
+@Singleton
+@Startup
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class CartStore {
+
+	static final int SHARDS = 16;
+	static final long IDLE_MILLIS = 30 * 60 * 1000;
+
+	private static final String UPDATE_ORDER_SQL = "update orders set total = ?, version = ? where order_id = ? and version = ? and status = 'OPEN'";
+	private static final String UPDATE_LINE_SQL = "update line_item set quantity = ?, amount = ? where order_id = ? and product_id = ?";
+	private static final String INSERT_LINE_SQL = "insert into line_item (order_id, product_id, quantity, amount) values (?, ?, ?, ?)";
+	private static final String DELETE_LINE_SQL = "delete from line_item where order_id = ? and product_id = ?";
+
+	@PersistenceContext
+	protected EntityManager em;
+
+	@Resource
+	protected SessionContext context;
+
+	@Resource
+	protected TimerService timerService;
+
+	@Resource
+	protected TransactionSynchronizationRegistry transactions;
+
+	@Resource(name="cartWriteBehind")
+	protected boolean enabled = false;
+
+	/* Turns the store on for the whole JVM without redeploying, for tests; the carts are then only written when flushed or submitted */
+	static final String WRITE_BEHIND_PROPERTY = "org.pwte.example.cartWriteBehind";
+
+	@Resource(name="cartFlushMillis")
+	protected long flushMillis = 5000;
+
+	/* Each shard is guarded by its own monitor */
+	private final List<Map<Integer, OpenCart>> shards = new ArrayList<Map<Integer, OpenCart>>(SHARDS);
+
+	private final AtomicLong writes = new AtomicLong();
+	private final AtomicLong conflicts = new AtomicLong();
+
+	public CartStore() {
+		for (int i = 0; i < SHARDS; i++) {
+			shards.add(new HashMap<Integer, OpenCart>());
+		}
+	}
+
+	@PostConstruct
+	void schedule() {
+		if (enabled && flushMillis > 0) {
+			timerService.createIntervalTimer(flushMillis, flushMillis, new TimerConfig("cart flush", false));
+		}
+	}
+
+	public boolean isEnabled() {
+		return enabled || Boolean.getBoolean(WRITE_BEHIND_PROPERTY);
+	}
+
+	private Map<Integer, OpenCart> shard(int customerId) {
+		return shards.get((customerId & Integer.MAX_VALUE) % SHARDS);
+	}
+
+	/**
+	 * @return the customer's cart, or null if it is not held
+	 */
+	public OpenCart get(int customerId) {
+		Map<Integer, OpenCart> shard = shard(customerId);
+		OpenCart cart;
+		synchronized (shard) {
+			cart = shard.get(customerId);
+		}
+		if (cart != null) cart.lastUsed = System.currentTimeMillis();
+		return cart;
+	}
+
+	/**
+	 * @return the cart now held for the customer, which is another one if
+	 *         a concurrent request added it first
+	 */
+	public OpenCart add(OpenCart cart) {
+		Map<Integer, OpenCart> shard = shard(cart.customerId);
+		synchronized (shard) {
+			OpenCart held = shard.get(cart.customerId);
+			if (held != null) return held;
+			shard.put(cart.customerId, cart);
+			return cart;
+		}
+	}
+
+	public void evict(int customerId) {
+		Map<Integer, OpenCart> shard = shard(customerId);
+		OpenCart cart;
+		synchronized (shard) {
+			cart = shard.remove(customerId);
+		}
+		if (cart != null) {
+			synchronized (cart) {
+				cart.evicted = true;
+			}
+		}
+	}
+
+	/**
+	 * Drops the customer's cart once the current transaction commits, for
+	 * an order that stops being open in it.
+	 */
+	public void evictAfterCommit(final int customerId) {
+		transactions.registerInterposedSynchronization(new Synchronization() {
+			public void beforeCompletion() {
+			}
+
+			public void afterCompletion(int status) {
+				if (status == Status.STATUS_COMMITTED) evict(customerId);
+			}
+		});
+	}
+
+	/**
+	 * For a cart whose order is inserted by the current transaction: holds
+	 * its writes back until the insert commits and then takes the version
+	 * the insert gave the order, or drops the cart if it rolls back. A cart
+	 * changed meanwhile is moved past that version, so its write never sets
+	 * the row's version back.
+	 * @param order the managed order being inserted
+	 */
+	public void insertedOnCompletion(final OpenCart cart, final Order order) {
+		transactions.registerInterposedSynchronization(new Synchronization() {
+			public void beforeCompletion() {
+			}
+
+			public void afterCompletion(int status) {
+				if (status != Status.STATUS_COMMITTED) {
+					evict(cart.customerId);
+					return;
+				}
+				synchronized (cart) {
+					cart.flushedVersion = order.getVersion();
+					if (cart.isDirty()) cart.order.setVersion(Math.max(cart.order.getVersion(), order.getVersion() + 1));
+					cart.inserting = false;
+				}
+			}
+		});
+	}
+
+	/**
+	 * Writes the customer's cart in the caller's transaction if it has
+	 * unwritten changes.
+	 */
+	public void flush(int customerId) {
+		OpenCart cart = get(customerId);
+		if (cart != null) write(cart);
+	}
+
+	@Timeout
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+	void flushOnTimer(Timer timer) {
+		CartStore self = context.getBusinessObject(CartStore.class);
+		for (int i = 0; i < SHARDS; i++) {
+			try {
+				self.flushShard(i);
+			} catch (RuntimeException e) {
+				// The carts stay dirty and are retried on the next run
+				e.printStackTrace(System.out);
+			}
+		}
+	}
+
+	/**
+	 * Writes every cart of the shard with unwritten changes and drops the
+	 * ones that have been idle and clean for {@link #IDLE_MILLIS}.
+	 * @return the number of carts written
+	 */
+	@TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+	public int flushShard(int index) {
+		Map<Integer, OpenCart> shard = shards.get(index);
+		List<OpenCart> carts;
+		long idleSince = System.currentTimeMillis() - IDLE_MILLIS;
+		synchronized (shard) {
+			carts = new ArrayList<OpenCart>(shard.values());
+		}
+		int written = 0;
+		for (OpenCart cart : carts) {
+			if (write(cart)) {
+				written++;
+			} else if (cart.lastUsed < idleSince) {
+				synchronized (shard) {
+					synchronized (cart) {
+						if (!cart.isDirty() && shard.get(cart.customerId) == cart) {
+							shard.remove(cart.customerId);
+							cart.evicted = true;
+						}
+					}
+				}
+			}
+		}
+		return written;
+	}
+
+	@PreDestroy
+	@TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+	void flushOnShutdown() {
+		if (!isEnabled()) return;
+		for (Map<Integer, OpenCart> shard : shards) {
+			List<OpenCart> carts;
+			synchronized (shard) {
+				carts = new ArrayList<OpenCart>(shard.values());
+			}
+			for (OpenCart cart : carts) {
+				write(cart);
+			}
+		}
+	}
+
+	/**
+	 * Writes the changes made to the cart since its last write in the
+	 * current transaction. The cart counts as written straight away, so a
+	 * concurrent write only picks up later changes; if the transaction
+	 * rolls back, the changes are marked unwritten again.
+	 * @return whether anything was written
+	 */
+	private boolean write(final OpenCart cart) {
+		synchronized (cart.flushLock) {
+			final long expected;
+			final long version;
+			final BigDecimal total;
+			final Set<Integer> products;
+			final List<LineItem> lines = new ArrayList<LineItem>();
+			synchronized (cart) {
+				if (cart.evicted || cart.inserting || !cart.isDirty()) return false;
+				expected = cart.flushedVersion;
+				version = cart.order.getVersion();
+				total = cart.order.getTotal();
+				products = new HashSet<Integer>(cart.changedProducts);
+				for (Integer productId : products) {
+					LineItem lineItem = cart.order.findLineItem(productId);
+					LineItem line = new LineItem();
+					line.setProductId(productId);
+					if (lineItem != null) {
+						line.setQuantity(lineItem.getQuantity());
+						line.setAmount(lineItem.getAmount());
+					}
+					lines.add(line);
+				}
+				cart.changedProducts.clear();
+				cart.flushedVersion = version;
+			}
+			transactions.registerInterposedSynchronization(new Synchronization() {
+				public void beforeCompletion() {
+				}
+
+				public void afterCompletion(int status) {
+					if (status == Status.STATUS_COMMITTED) return;
+					synchronized (cart) {
+						if (cart.flushedVersion == version) cart.flushedVersion = expected;
+						cart.changedProducts.addAll(products);
+					}
+				}
+			});
+
+			int orderId = cart.order.getOrderId();
+			Query order = em.createNativeQuery(UPDATE_ORDER_SQL);
+			order.setParameter(1, total);
+			order.setParameter(2, version);
+			order.setParameter(3, orderId);
+			order.setParameter(4, expected);
+			if (order.executeUpdate() == 0) {
+				conflicts.incrementAndGet();
+				evict(cart.customerId);
+				return false;
+			}
+			for (LineItem line : lines) {
+				if (line.getAmount() == null) {
+					Query delete = em.createNativeQuery(DELETE_LINE_SQL);
+					delete.setParameter(1, orderId);
+					delete.setParameter(2, line.getProductId());
+					delete.executeUpdate();
+					continue;
+				}
+				Query update = em.createNativeQuery(UPDATE_LINE_SQL);
+				update.setParameter(1, line.getQuantity());
+				update.setParameter(2, line.getAmount());
+				update.setParameter(3, orderId);
+				update.setParameter(4, line.getProductId());
+				if (update.executeUpdate() == 0) {
+					Query insert = em.createNativeQuery(INSERT_LINE_SQL);
+					insert.setParameter(1, orderId);
+					insert.setParameter(2, line.getProductId());
+					insert.setParameter(3, line.getQuantity());
+					insert.setParameter(4, line.getAmount());
+					insert.executeUpdate();
+				}
+			}
+			writes.incrementAndGet();
+			return true;
+		}
+	}
+
+	public int size() {
+		int size = 0;
+		for (Map<Integer, OpenCart> shard : shards) {
+			synchronized (shard) {
+				size += shard.size();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * @return the carts held now, and since startup how many were written
+	 *         and how many were dropped because their order had been changed
+	 *         elsewhere
+	 */
+	public Map<String, Long> getStatistics() {
+		Map<String, Long> statistics = new LinkedHashMap<String, Long>();
+		statistics.put("carts", (long) size());
+		statistics.put("writes", writes.get());
+		statistics.put("conflicts", conflicts.get());
+		return statistics;
+	}
+
+}
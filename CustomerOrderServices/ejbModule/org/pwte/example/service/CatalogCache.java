@@ -0,0 +1,321 @@
+package org.pwte.example.service;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.ejb.Asynchronous;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.SessionContext;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.Query;
+
+import org.pwte.example.domain.Product;
+
+/**
+ * Holds the in-memory catalog snapshots shared by every ProductSearchService
+ * instance in this JVM.
+ *
+ * Readers never block: each snapshot is immutable and published through a
+ * volatile reference, and a rebuild swaps in a complete new snapshot.
+ * The product text index is the exception: it is built once at startup and
+ * then maintained one product at a time. Refreshes of any kind are
+ * serialized on the cache's monitor.
+ */
+@Singleton
+@Startup
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class CatalogCache {
+
+	private static final int MAX_PAGE_CURSORS = 4096;
+
+	@PersistenceContext
+	protected EntityManager em;
+
+	@Resource
+	protected SessionContext context;
+
+	private final AtomicLong categoryVersion = new AtomicLong();
+
+	private final AtomicLong catalogVersion = new AtomicLong();
+
+	/* Catalog version at which each product was last refreshed on its own */
+	private final Map<Integer, Long> productVersions = new ConcurrentHashMap<Integer, Long>();
+
+	/* Catalog version at which every product was last reloaded */
+	private volatile long productsVersion;
+
+	private final Map<String, Object[]> pageCursors = new LinkedHashMap<String, Object[]>(256, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Object[]> eldest) {
+			return size() > MAX_PAGE_CURSORS;
+		}
+	};
+
+	private volatile CategoryTree categoryTree;
+
+	private volatile ProductTextIndex productTextIndex;
+
+	private volatile ProductFacetIndex productFacetIndex;
+
+	private volatile ProductSuggestIndex productSuggestIndex;
+
+	/* Incremented after each typeahead index is swapped in; written under this */
+	private volatile long suggestVersion;
+
+	private final AtomicBoolean suggestRebuildPending = new AtomicBoolean();
+
+	@PostConstruct
+	void init() {
+		try {
+			refreshCategoryTree();
+			refreshProductIndex();
+			refreshProductFacetIndex();
+			refreshProductSuggestIndex();
+		} catch (RuntimeException e) {
+			// The catalog is loaded again on first use
+			e.printStackTrace(System.out);
+		}
+	}
+
+	/**
+	 * @return a number that changes whenever any cached catalog data is
+	 *         reloaded, so anything derived from the catalog can be keyed by it
+	 */
+	@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+	public long getCatalogVersion() {
+		return catalogVersion.get();
+	}
+
+	/**
+	 * @return a number that changes whenever this product is refreshed, so
+	 *         anything derived from the product alone can be keyed by it
+	 */
+	@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+	public long getProductVersion(int productId) {
+		Long version = productVersions.get(productId);
+		return version == null ? productsVersion : Math.max(version, productsVersion);
+	}
+
+	@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+	public CategoryTree getCategoryTree() {
+		CategoryTree tree = categoryTree;
+		if (tree == null) tree = refreshCategoryTree();
+		return tree;
+	}
+
+	/**
+	 * Reloads the category hierarchy with a single query and publishes it as
+	 * the current snapshot.
+	 */
+	@SuppressWarnings("unchecked")
+	@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+	public synchronized CategoryTree refreshCategoryTree() {
+		Query query = em.createNamedQuery("category.tree");
+		List<Object[]> rows = query.getResultList();
+		CategoryTree tree = new CategoryTree(categoryVersion.incrementAndGet(), rows);
+		categoryTree = tree;
+		productFacetIndex = null;
+		catalogChanged();
+		return tree;
+	}
+
+	/**
+	 * @param key catalog version, listing identity and the offset the cursor ends at
+	 * @return <code>{sortValue, productId}</code> of the last product before that offset, or null
+	 */
+	@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+	public Object[] getPageCursor(String key) {
+		synchronized (pageCursors) {
+			return pageCursors.get(key);
+		}
+	}
+
+	@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+	public void putPageCursor(String key, Object[] cursor) {
+		synchronized (pageCursors) {
+			pageCursors.put(key, cursor);
+		}
+	}
+
+	@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+	public ProductTextIndex getProductTextIndex() {
+		ProductTextIndex index = productTextIndex;
+		if (index == null) index = refreshProductIndex();
+		return index;
+	}
+
+	/**
+	 * Rebuilds the product text index from a projection of every product,
+	 * and drops the facet index, whose prices and bitmaps may all be stale.
+	 */
+	@SuppressWarnings("unchecked")
+	@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+	public synchronized ProductTextIndex refreshProductIndex() {
+		Query query = em.createNamedQuery("product.summary.all");
+		List<Object[]> rows = query.getResultList();
+		ProductTextIndex index = new ProductTextIndex();
+		for (Object[] row : rows) {
+			index.put(toProduct(row));
+		}
+		productTextIndex = index;
+		productFacetIndex = null;
+		productsVersion = catalogChanged();
+		productVersions.clear();
+		return index;
+	}
+
+	/**
+	 * @return the facet index, rebuilt first if the catalog changed since it was built
+	 */
+	@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+	public ProductFacetIndex getProductFacetIndex() {
+		ProductFacetIndex index = productFacetIndex;
+		if (index == null || index.getCategoryVersion() != getCategoryTree().getVersion()) index = currentProductFacetIndex();
+		return index;
+	}
+
+	/* Checks again under the monitor, so requests queued behind a rebuild use its index */
+	private synchronized ProductFacetIndex currentProductFacetIndex() {
+		ProductFacetIndex index = productFacetIndex;
+		if (index != null && index.getCategoryVersion() == getCategoryTree().getVersion()) return index;
+		return refreshProductFacetIndex();
+	}
+
+	/**
+	 * Rebuilds the facet bitmaps from the product projection and the
+	 * PROD_CAT link table, two queries in all.
+	 */
+	@SuppressWarnings("unchecked")
+	@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+	public synchronized ProductFacetIndex refreshProductFacetIndex() {
+		List<Object[]> links = em.createNamedQuery("product.category.links").getResultList();
+		ProductFacetIndex index = new ProductFacetIndex(getCategoryTree(), loadProducts(), links);
+		productFacetIndex = index;
+		return index;
+	}
+
+	/**
+	 * @return the typeahead index; after a catalog change this is the previous
+	 *         index until the background rebuild has swapped in its successor
+	 */
+	@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+	public ProductSuggestIndex getProductSuggestIndex() {
+		ProductSuggestIndex index = productSuggestIndex;
+		if (index == null) index = refreshProductSuggestIndex();
+		return index;
+	}
+
+	/**
+	 * Rebuilds the typeahead index from the product projection, the PROD_CAT
+	 * links and the quantity ordered of each product.
+	 */
+	@SuppressWarnings("unchecked")
+	@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+	public synchronized ProductSuggestIndex refreshProductSuggestIndex() {
+		List<Object[]> links = em.createNamedQuery("product.category.links").getResultList();
+		List<Object[]> popularity = em.createNamedQuery("lineitem.product.popularity").getResultList();
+		ProductSuggestIndex index = new ProductSuggestIndex(getCategoryTree(), loadProducts(), links, popularity);
+		productSuggestIndex = index;
+		suggestVersion++;
+		return index;
+	}
+
+	/**
+	 * @return a number that changes whenever a typeahead index is swapped in;
+	 *         read before the index, it never labels an index older than itself
+	 */
+	@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+	public long getSuggestVersion() {
+		return suggestVersion;
+	}
+
+	/**
+	 * Runs {@link #refreshProductSuggestIndex()} on a container thread. Calls
+	 * that arrive while one is already queued are folded into it.
+	 */
+	@Asynchronous
+	@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+	public void rebuildProductSuggestIndex() {
+		suggestRebuildPending.set(false);
+		try {
+			refreshProductSuggestIndex();
+		} catch (RuntimeException e) {
+			// The previous index stays in service
+			e.printStackTrace(System.out);
+		}
+	}
+
+	private long catalogChanged() {
+		long version = catalogVersion.incrementAndGet();
+		// Cursors are keyed by the catalog version, so the older ones can no longer be hit
+		synchronized (pageCursors) {
+			pageCursors.clear();
+		}
+		if (productSuggestIndex != null && suggestRebuildPending.compareAndSet(false, true)) {
+			context.getBusinessObject(CatalogCache.class).rebuildProductSuggestIndex();
+		}
+		return version;
+	}
+
+	@SuppressWarnings("unchecked")
+	private List<Product> loadProducts() {
+		List<Object[]> rows = em.createNamedQuery("product.summary.all").getResultList();
+		List<Product> products = new ArrayList<Product>(rows.size());
+		for (Object[] row : rows) {
+			products.add(toProduct(row));
+		}
+		return products;
+	}
+
+	/**
+	 * Re-reads one product and updates the in-memory indexes with it, or
+	 * drops it from them if it no longer exists.
+	 */
+	@SuppressWarnings("unchecked")
+	@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+	public synchronized void refreshProduct(int productId) {
+		Query query = em.createNamedQuery("product.summary");
+		query.setParameter("productId", productId);
+		List<Object[]> rows = query.getResultList();
+		ProductTextIndex index = getProductTextIndex();
+		if (rows.isEmpty()) {
+			index.remove(productId);
+		} else {
+			index.put(toProduct(rows.get(0)));
+		}
+		// Bitmaps are positional, so the facet index is rebuilt on next use
+		productFacetIndex = null;
+		productVersions.put(productId, catalogChanged());
+	}
+
+	/**
+	 * @param row <code>{productId, name, price, description, imagePath}</code>
+	 * @return a detached product without categories
+	 */
+	static Product toProduct(Object[] row) {
+		Product product = new Product();
+		product.setProductId(((Number) row[0]).intValue());
+		product.setName((String) row[1]);
+		product.setPrice((BigDecimal) row[2]);
+		product.setDescription((String) row[3]);
+		product.setImagePath((String) row[4]);
+		return product;
+	}
+
+}
@@ -0,0 +1,17 @@
+package org.pwte.example.service;
+
+public interface CatalogChangeMonitor 
+{
+	/**
+	 * Applies every catalog change logged since the last poll to the
+	 * in-memory catalog of this server. Normally called on a timer, but may
+	 * be called directly, for instance by a test that has just changed the
+	 * catalog.
+	 * @return the number of change log rows applied
+	 */
+	public int poll();
+	/**
+	 * @return the id of the newest change applied so far
+	 */
+	public long getLastChangeId();
+}
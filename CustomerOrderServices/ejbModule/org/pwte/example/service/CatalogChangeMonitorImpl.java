@@ -0,0 +1,154 @@
+package org.pwte.example.service;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.DependsOn;
+import javax.ejb.EJB;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.ejb.Timeout;
+import javax.ejb.Timer;
+import javax.ejb.TimerConfig;
+import javax.ejb.TimerService;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.Query;
+
+/**
+ * Keeps the in-memory catalog of this server in step with the database by
+ * polling CATALOG_CHANGE, which triggers on PRODUCT, CATEGORY and PROD_CAT
+ * fill. Every server polls on its own and remembers how far it has read, so
+ * the log is shared by the whole cluster without any coordination.
+ *
+ * A changed product is re-read on its own, which also invalidates the
+ * responses cached for it; a changed category reloads the category tree.
+ * The poll interval is the catalogChangePollMillis environment entry, and
+ * 0 turns polling off.
+ *
+ * Identity values are handed out before their transaction commits, so a
+ * change can become visible after one with a higher id has already been
+ * read. Ids skipped over are therefore watched for a few more polls.
+ */
+@Singleton
+@Startup
+@DependsOn("CatalogCache")
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class CatalogChangeMonitorImpl implements CatalogChangeMonitor {
+
+	static final int MAX_CHANGES_PER_POLL = 1000;
+	static final int FULL_RELOAD_THRESHOLD = 200;
+	static final int GAP_POLLS = 10;
+	static final int MAX_GAP = 100;
+	static final int PURGE_EVERY_POLLS = 1000;
+
+	private static final String CHANGES_SQL = "select c.change_id, c.entity_type, c.entity_id from catalog_change as c where c.change_id > ? order by c.change_id";
+	/* Changes made while this server was loading its catalog are applied again */
+	private static final String START_SQL = "select coalesce(max(c.change_id), 0) from catalog_change as c where c.changed_at < current timestamp - 60 seconds";
+	private static final String PURGE_SQL = "delete from catalog_change where changed_at < current timestamp - 1 day";
+
+	@PersistenceContext
+	protected EntityManager em;
+
+	@EJB
+	protected CatalogCache catalogCache;
+
+	@Resource
+	protected TimerService timerService;
+
+	@Resource(name="catalogChangePollMillis")
+	protected long pollMillis = 2000;
+
+	private long lastChangeId = -1;
+	/* Ids skipped over, with the number of polls left to wait for them */
+	private final Map<Long, Integer> gaps = new HashMap<Long, Integer>();
+	private int polls;
+
+	@PostConstruct
+	void schedule() {
+		if (pollMillis > 0) {
+			timerService.createIntervalTimer(pollMillis, pollMillis, new TimerConfig("catalog change poll", false));
+		}
+	}
+
+	@Timeout
+	void pollOnTimer(Timer timer) {
+		try {
+			poll();
+		} catch (RuntimeException e) {
+			// Picked up again from the same point on the next poll
+			e.printStackTrace(System.out);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	public synchronized int poll() {
+		if (lastChangeId < 0) {
+			lastChangeId = ((Number) em.createNativeQuery(START_SQL).getSingleResult()).longValue();
+		}
+		long from = lastChangeId;
+		for (Long gap : gaps.keySet()) {
+			from = Math.min(from, gap - 1);
+		}
+		Query query = em.createNativeQuery(CHANGES_SQL);
+		query.setParameter(1, from);
+		query.setMaxResults(MAX_CHANGES_PER_POLL);
+		List<Object[]> rows = query.getResultList();
+
+		Set<Integer> products = new LinkedHashSet<Integer>();
+		boolean categories = false;
+		int applied = 0;
+		for (Object[] row : rows) {
+			long changeId = ((Number) row[0]).longValue();
+			if (changeId <= lastChangeId) {
+				if (gaps.remove(changeId) == null) continue;
+			} else {
+				// A wider jump is an identity cache being discarded, not transactions in flight
+				for (long skipped = Math.max(lastChangeId + 1, changeId - MAX_GAP); skipped < changeId; skipped++) {
+					gaps.put(skipped, GAP_POLLS);
+				}
+				lastChangeId = changeId;
+			}
+			applied++;
+			if ("C".equals(((String) row[1]).trim())) {
+				categories = true;
+			} else {
+				products.add(((Number) row[2]).intValue());
+			}
+		}
+		for (Iterator<Map.Entry<Long, Integer>> gap = gaps.entrySet().iterator(); gap.hasNext();) {
+			Map.Entry<Long, Integer> entry = gap.next();
+			if (entry.getValue() <= 1) gap.remove();
+			else entry.setValue(entry.getValue() - 1);
+		}
+
+		if (categories) {
+			catalogCache.refreshCategoryTree();
+		}
+		if (products.size() > FULL_RELOAD_THRESHOLD) {
+			catalogCache.refreshProductIndex();
+		} else {
+			for (Integer productId : products) {
+				catalogCache.refreshProduct(productId);
+			}
+		}
+
+		if (++polls % PURGE_EVERY_POLLS == 0) {
+			em.createNativeQuery(PURGE_SQL).executeUpdate();
+		}
+		return applied;
+	}
+
+	public synchronized long getLastChangeId() {
+		return lastChangeId;
+	}
+
+}
@@ -0,0 +1,11 @@
+package org.pwte.example.service;
+
+import org.pwte.example.domain.WarmupStatus;
+
+public interface CatalogWarmupService 
+{
+	/**
+	 * @return whether the catalog has been warmed up, and how far it got if not
+	 */
+	public WarmupStatus getStatus();
+}
@@ -0,0 +1,191 @@
+package org.pwte.example.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.DependsOn;
+import javax.ejb.EJB;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.ejb.Timeout;
+import javax.ejb.Timer;
+import javax.ejb.TimerConfig;
+import javax.ejb.TimerService;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.pwte.example.domain.Category;
+import org.pwte.example.domain.ProductPage;
+import org.pwte.example.domain.WarmupStatus;
+import org.pwte.example.exception.ProductDoesNotExistException;
+
+/**
+ * Warms the catalog up right after deployment so the first real requests do
+ * not pay for cold JPA metadata, unprepared statements and unoptimized
+ * serialization.
+ *
+ * The work runs on a timer thread, so application start is not held up;
+ * {@link #getStatus()} reports not ready until every phase has completed.
+ * If a phase fails, for instance because the database is not up yet, the
+ * whole warm-up is retried after {@link #RETRY_MILLIS}.
+ */
+@Singleton
+@Startup
+@DependsOn("CatalogCache")
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class CatalogWarmupServiceImpl implements CatalogWarmupService {
+
+	static final int HOT_PRODUCTS = 100;
+	static final int SERIALIZATION_ROUNDS = 50;
+	static final long RETRY_MILLIS = 30000;
+
+	@PersistenceContext
+	protected EntityManager em;
+
+	@EJB
+	protected CatalogCache catalogCache;
+
+	@EJB
+	protected ProductSearchService productSearch;
+
+	@Resource
+	protected TimerService timerService;
+
+	private volatile boolean ready;
+	private volatile String phase = "scheduled";
+	private volatile long started = System.currentTimeMillis();
+	private volatile long finished;
+	private volatile int attempts;
+	private volatile String lastFailure;
+	private volatile List<Integer> hotProductIds = Collections.emptyList();
+
+	@PostConstruct
+	void schedule() {
+		timerService.createSingleActionTimer(0, new TimerConfig("catalog warm-up", false));
+	}
+
+	@Timeout
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+	void warmUp(Timer timer) {
+		attempts++;
+		try {
+			phase = "categories";
+			CategoryTree tree = catalogCache.getCategoryTree();
+			em.createNamedQuery("top.level.category").getResultList();
+
+			phase = "listings";
+			// The top two levels are the busiest listings; below them, one
+			// category of each IN list size not yet seen prepares the rest
+			Set<Integer> slots = new HashSet<Integer>();
+			List<Category> level = tree.getTopLevelCategories();
+			for (int depth = 0; !level.isEmpty(); depth++) {
+				List<Category> next = new ArrayList<Category>();
+				for (Category category : level) {
+					int categoryId = category.getCategoryID();
+					if (slots.add(ProductSearchServiceImpl.parameterSlots(tree.getSubtreeIds(categoryId).size())) || depth < 2) {
+						warmListing(categoryId);
+					}
+					next.addAll(tree.getChildren(categoryId));
+				}
+				level = next;
+			}
+
+			phase = "products";
+			List<Integer> hot = findHotProducts();
+			for (Integer productId : hot) {
+				try {
+					productSearch.loadProduct(productId);
+				} catch (ProductDoesNotExistException e) {
+					// Deleted since it was ordered
+				}
+			}
+			int[] ids = new int[hot.size()];
+			for (int i = 0; i < ids.length; i++) ids[i] = hot.get(i);
+			productSearch.loadProducts(ids);
+			hotProductIds = Collections.unmodifiableList(hot);
+
+			phase = "indexes";
+			productSearch.searchProducts("warm up", 10);
+			productSearch.suggest("a", 10);
+			productSearch.loadProductFacets(new ArrayList<Integer>(), null, null, null, 0, 10);
+
+			phase = "serialization";
+			ObjectMapper mapper = new ObjectMapper();
+			List<Category> categories = tree.getTopLevelCategories();
+			Object products = productSearch.loadProducts(ids);
+			for (int round = 0; round < SERIALIZATION_ROUNDS; round++) {
+				mapper.writeValueAsBytes(categories);
+				mapper.writeValueAsBytes(products);
+			}
+
+			phase = "ready";
+			finished = System.currentTimeMillis();
+			ready = true;
+		} catch (Exception e) {
+			lastFailure = phase + ": " + e;
+			e.printStackTrace(System.out);
+			timerService.createSingleActionTimer(RETRY_MILLIS, new TimerConfig("catalog warm-up", false));
+		}
+	}
+
+	private void warmListing(int categoryId) {
+		productSearch.loadProductsByCategory(categoryId);
+		for (ProductPage.Sort sort : ProductPage.Sort.values()) {
+			productSearch.loadProductsByCategory(categoryId, sort, false, 0, 20);
+		}
+	}
+
+	/**
+	 * @return the most ordered products, topped up with others if fewer than
+	 *         {@link #HOT_PRODUCTS} have ever been ordered
+	 */
+	@SuppressWarnings("unchecked")
+	private List<Integer> findHotProducts() {
+		List<Object[]> popularity = new ArrayList<Object[]>(em.createNamedQuery("lineitem.product.popularity").getResultList());
+		Collections.sort(popularity, new Comparator<Object[]>() {
+			public int compare(Object[] a, Object[] b) {
+				long qa = ((Number) a[1]).longValue();
+				long qb = ((Number) b[1]).longValue();
+				return qa > qb ? -1 : (qa == qb ? 0 : 1);
+			}
+		});
+		Set<Integer> hot = new LinkedHashSet<Integer>();
+		for (Object[] row : popularity) {
+			if (hot.size() == HOT_PRODUCTS) break;
+			hot.add(((Number) row[0]).intValue());
+		}
+		if (hot.size() < HOT_PRODUCTS) {
+			List<Object[]> rows = em.createNamedQuery("product.summary.all").setMaxResults(HOT_PRODUCTS).getResultList();
+			for (Object[] row : rows) {
+				if (hot.size() == HOT_PRODUCTS) break;
+				hot.add(((Number) row[0]).intValue());
+			}
+		}
+		return new ArrayList<Integer>(hot);
+	}
+
+	public WarmupStatus getStatus() {
+		WarmupStatus status = new WarmupStatus();
+		boolean done = ready;
+		status.setReady(done);
+		status.setPhase(phase);
+		status.setElapsedMillis((done ? finished : System.currentTimeMillis()) - started);
+		status.setAttempts(attempts);
+		status.setLastFailure(lastFailure);
+		status.setHotProductIds(hotProductIds);
+		return status;
+	}
+
+}
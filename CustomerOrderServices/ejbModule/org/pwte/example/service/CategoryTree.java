@@ -0,0 +1,145 @@
+package org.pwte.example.service;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.pwte.example.domain.Category;
+
+/**
+ * Immutable, versioned snapshot of the whole category hierarchy.
+ *
+ * The snapshot is built from a single projection over CATEGORY and holds
+ * detached {@link Category} nodes wired to their parent and children, so
+ * lookups by id, parent and children never touch the database. The nodes
+ * are shared by every caller and must be treated as read-only; a change to
+ * the hierarchy is published by building a new snapshot, never by editing
+ * this one.
+ *
+ * The snapshot also carries the ancestry closure of the hierarchy: for every
+ * category the ids of the category itself and all of its descendants, at any
+ * depth, so a subtree can be resolved without recursive SQL.
+ */
+public final class CategoryTree implements Serializable {
+
+	private static final long serialVersionUID = 4410722313954207415L;
+
+	private final long version;
+	private final Map<Integer, Category> categories;
+	private final Map<Integer, Integer> parents;
+	private final List<Category> topLevel;
+	private final Map<Integer, List<Integer>> subtrees;
+
+	/**
+	 * @param version
+	 * @param rows one <code>{categoryId, name, parentId}</code> row per category, parentId null for top level
+	 */
+	public CategoryTree(long version, List<Object[]> rows) {
+		this.version = version;
+		Map<Integer, Category> byId = new HashMap<Integer, Category>(rows.size() * 2);
+		Map<Integer, Integer> parentIds = new HashMap<Integer, Integer>(rows.size() * 2);
+		Map<Integer, List<Category>> children = new HashMap<Integer, List<Category>>();
+		for (Object[] row : rows) {
+			Category category = new Category();
+			category.setCategoryID(((Number) row[0]).intValue());
+			category.setName((String) row[1]);
+			byId.put(category.getCategoryID(), category);
+			children.put(category.getCategoryID(), new ArrayList<Category>());
+			if (row[2] != null) parentIds.put(category.getCategoryID(), ((Number) row[2]).intValue());
+		}
+
+		List<Category> roots = new ArrayList<Category>();
+		for (Object[] row : rows) {
+			Category category = byId.get(((Number) row[0]).intValue());
+			Category parent = row[2] == null ? null : byId.get(((Number) row[2]).intValue());
+			if (parent == null) {
+				roots.add(category);
+			} else {
+				category.setParent(parent);
+				children.get(parent.getCategoryID()).add(category);
+			}
+		}
+		for (Category category : byId.values()) {
+			category.setSubCategories(Collections.unmodifiableList(children.get(category.getCategoryID())));
+		}
+
+		Map<Integer, List<Integer>> closure = new HashMap<Integer, List<Integer>>(rows.size() * 2);
+		for (Category root : roots) {
+			collectSubtree(root, closure);
+		}
+
+		this.categories = Collections.unmodifiableMap(byId);
+		this.parents = Collections.unmodifiableMap(parentIds);
+		this.topLevel = Collections.unmodifiableList(roots);
+		this.subtrees = Collections.unmodifiableMap(closure);
+	}
+
+	private static List<Integer> collectSubtree(Category category, Map<Integer, List<Integer>> closure) {
+		List<Integer> ids = new ArrayList<Integer>();
+		ids.add(category.getCategoryID());
+		for (Category child : category.getSubCategories()) {
+			ids.addAll(collectSubtree(child, closure));
+		}
+		List<Integer> subtree = Collections.unmodifiableList(ids);
+		closure.put(category.getCategoryID(), subtree);
+		return subtree;
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * @param categoryId
+	 * @return the category, or null if it is not part of this snapshot
+	 */
+	public Category getCategory(int categoryId) {
+		return categories.get(categoryId);
+	}
+
+	public boolean contains(int categoryId) {
+		return categories.containsKey(categoryId);
+	}
+
+	/**
+	 * @param categoryId
+	 * @return the parent category id, or null for a top level or unknown category
+	 */
+	public Integer getParentId(int categoryId) {
+		return parents.get(categoryId);
+	}
+
+	/**
+	 * @param categoryId
+	 * @return the direct sub-categories, empty for a leaf or unknown category
+	 */
+	@SuppressWarnings("unchecked")
+	public List<Category> getChildren(int categoryId) {
+		Category category = categories.get(categoryId);
+		if (category == null) return Collections.EMPTY_LIST;
+		return (List<Category>) category.getSubCategories();
+	}
+
+	/**
+	 * @param categoryId
+	 * @return the category id followed by the ids of all its descendants, empty for an unknown category
+	 */
+	@SuppressWarnings("unchecked")
+	public List<Integer> getSubtreeIds(int categoryId) {
+		List<Integer> subtree = subtrees.get(categoryId);
+		if (subtree == null) return Collections.EMPTY_LIST;
+		return subtree;
+	}
+
+	public List<Category> getTopLevelCategories() {
+		return topLevel;
+	}
+
+	public int size() {
+		return categories.size();
+	}
+
+}
@@ -0,0 +1,53 @@
+package org.pwte.example.service;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Singleton;
+
+/**
+ * Remembers which customer each user name belongs to, so the customer of a
+ * request can be read by primary key instead of by USERNAME.
+ *
+ * The mapping is only a hint: callers check the user of the customer they
+ * find and {@link #evict(String)} the entry when it no longer matches, so a
+ * customer that is deleted or renamed, on this server or another, costs
+ * one lookup by name. Once {@link #MAX_USERS} names are held an arbitrary
+ * one is dropped for every name added.
+ */
+@Singleton
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class CustomerIdCache {
+
+	static final int MAX_USERS = 10000;
+
+	private final Map<String, Integer> customerIds = new ConcurrentHashMap<String, Integer>();
+
+	/**
+	 * @return the customer id last seen for the user, or null
+	 */
+	public Integer get(String user) {
+		return customerIds.get(user);
+	}
+
+	public void put(String user, int customerId) {
+		if (customerIds.put(user, customerId) == null && customerIds.size() > MAX_USERS) {
+			Iterator<String> users = customerIds.keySet().iterator();
+			while (customerIds.size() > MAX_USERS && users.hasNext()) {
+				if (!users.next().equals(user)) users.remove();
+			}
+		}
+	}
+
+	public void evict(String user) {
+		customerIds.remove(user);
+	}
+
+	public int size() {
+		return customerIds.size();
+	}
+
+}
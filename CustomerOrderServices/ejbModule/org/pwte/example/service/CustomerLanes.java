@@ -0,0 +1,113 @@
+package org.pwte.example.service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+/**
+ * Runs the order changes of one customer one transaction at a time, in the
+ * order they arrive, so concurrent requests from several tabs read the
+ * order as the previous one committed it instead of failing its version
+ * check after doing all their work or waiting on its row locks.
+ *
+ * Customers are striped across {@link #STRIPES} lanes, each a fair
+ * semaphore, so there is no global lock and customers only wait for each
+ * other when they share a lane. A transaction enters its customer's lane
+ * once, however many changes it makes, and leaves it when it completes. A
+ * transaction that waits longer than {@link #WAIT_MILLIS} goes ahead
+ * without the lane and relies on the version check alone.
+ *
+ * This is a plain JVM-wide object rather than a singleton bean because
+ * lanes are left from transaction completion callbacks, where no bean may
+ * be invoked. Lanes only order the requests a server sees itself.
+ */
+public class CustomerLanes {
+
+	static final int STRIPES = 256;
+	static final long WAIT_MILLIS = 10000;
+	private static final CustomerLanes INSTANCE = new CustomerLanes();
+
+	public static CustomerLanes getInstance() {
+		return INSTANCE;
+	}
+
+	private final Semaphore[] lanes = new Semaphore[STRIPES];
+	private final AtomicLong entered = new AtomicLong();
+	private final AtomicLong waited = new AtomicLong();
+	private final AtomicLong waitNanos = new AtomicLong();
+	private final AtomicLong timeouts = new AtomicLong();
+
+	CustomerLanes() {
+		for (int i = 0; i < STRIPES; i++) {
+			lanes[i] = new Semaphore(1, true);
+		}
+	}
+
+	/**
+	 * Waits for the customer's lane and holds it until the current
+	 * transaction completes. Does nothing if the transaction holds a lane
+	 * already.
+	 */
+	public void enter(int customerId, TransactionSynchronizationRegistry transactions) {
+		if (transactions.getResource(CustomerLanes.class) != null) return;
+		final Semaphore lane = lanes[(customerId & Integer.MAX_VALUE) % STRIPES];
+		entered.incrementAndGet();
+		if (!lane.tryAcquire()) {
+			waited.incrementAndGet();
+			long start = System.nanoTime();
+			boolean acquired;
+			try {
+				acquired = lane.tryAcquire(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				acquired = false;
+			}
+			waitNanos.addAndGet(System.nanoTime() - start);
+			if (!acquired) {
+				timeouts.incrementAndGet();
+				return;
+			}
+		}
+		transactions.putResource(CustomerLanes.class, lane);
+		transactions.registerInterposedSynchronization(new Synchronization() {
+			public void beforeCompletion() {
+			}
+
+			public void afterCompletion(int status) {
+				lane.release();
+			}
+		});
+	}
+
+	/**
+	 * @return the transactions waiting now, in total and in the busiest
+	 *         lane, and counts since startup
+	 */
+	public Map<String, Long> getStatistics() {
+		long queued = 0;
+		long maxQueued = 0;
+		long busy = 0;
+		for (Semaphore lane : lanes) {
+			int length = lane.getQueueLength();
+			queued += length;
+			maxQueued = Math.max(maxQueued, length);
+			if (lane.availablePermits() == 0) busy++;
+		}
+		Map<String, Long> statistics = new LinkedHashMap<String, Long>();
+		statistics.put("lanes", (long) STRIPES);
+		statistics.put("busy", busy);
+		statistics.put("queued", queued);
+		statistics.put("maxQueued", maxQueued);
+		statistics.put("entered", entered.get());
+		statistics.put("waited", waited.get());
+		statistics.put("waitMillis", TimeUnit.NANOSECONDS.toMillis(waitNanos.get()));
+		statistics.put("timeouts", timeouts.get());
+		return statistics;
+	}
+
+}
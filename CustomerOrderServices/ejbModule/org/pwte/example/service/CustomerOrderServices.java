@@ -2,19 +2,26 @@ package org.pwte.example.service;
 
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Set;
 
 import org.pwte.example.domain.AbstractCustomer;
 import org.pwte.example.domain.Address;
 import org.pwte.example.domain.LineItem;
+import org.pwte.example.domain.LineItemChange;
 import org.pwte.example.domain.Order;
+import org.pwte.example.domain.OrderHistoryPage;
+import org.pwte.example.domain.OrderHistoryVersion;
+import org.pwte.example.domain.OrderSubmission;
 import org.pwte.example.exception.CustomerDoesNotExistException;
 import org.pwte.example.exception.GeneralPersistenceException;
 import org.pwte.example.exception.InvalidQuantityException;
 import org.pwte.example.exception.NoLineItemsException;
+import org.pwte.example.exception.OrderDoesNotExistException;
 import org.pwte.example.exception.OrderModifiedException;
 import org.pwte.example.exception.OrderNotOpenException;
 import org.pwte.example.exception.ProductDoesNotExistException;
+import org.pwte.example.exception.SubmitQueueFullException;
 
 public interface CustomerOrderServices {
 	
@@ -53,6 +60,15 @@ public interface CustomerOrderServices {
 	public Order addLineItem(LineItem lineItem) throws CustomerDoesNotExistException, OrderNotOpenException, ProductDoesNotExistException, GeneralPersistenceException, InvalidQuantityException, OrderModifiedException; 
 
 	public Order removeLineItem(int productId,long version ) throws CustomerDoesNotExistException, OrderNotOpenException, ProductDoesNotExistException, NoLineItemsException, GeneralPersistenceException, OrderModifiedException;
+	/**
+	 * Applies a batch of line item changes to the open order atomically,
+	 * opening an order first if there is none.
+	 * @param changes applied in list order
+	 * @param version the open order's version, ignored if there is no open order
+	 * @return the open order after the changes
+	 * @throws NoLineItemsException if a product to remove is not in the order
+	 */
+	public Order applyLineItemChanges(List<LineItemChange> changes, long version) throws CustomerDoesNotExistException, OrderNotOpenException, ProductDoesNotExistException, NoLineItemsException, GeneralPersistenceException, InvalidQuantityException, OrderModifiedException;
 	/**
 	 * @param customerId
 	 * @throws CustomerDoesNotExistException
@@ -61,13 +77,51 @@ public interface CustomerOrderServices {
 	 * @throws GeneralPersistenceException
 	 */
 	public void submit(long version) throws CustomerDoesNotExistException, OrderNotOpenException, NoLineItemsException, GeneralPersistenceException,OrderModifiedException ;
+	
+	/**
+	 * Submits the open order, or only validates and queues it when
+	 * asynchronous submission is on.
+	 * @return the submission, SUBMITTED or QUEUED
+	 * @throws SubmitQueueFullException if the order cannot be queued now
+	 */
+	public OrderSubmission submitOrder(long version) throws CustomerDoesNotExistException, OrderNotOpenException, NoLineItemsException, GeneralPersistenceException, OrderModifiedException, SubmitQueueFullException;
+	
+	/**
+	 * @param orderId one of the caller's orders
+	 * @return how its submission stands
+	 */
+	public OrderSubmission loadSubmission(int orderId) throws CustomerDoesNotExistException, OrderDoesNotExistException, GeneralPersistenceException;
 
 	public Set<Order> loadCustomerHistory()throws CustomerDoesNotExistException,GeneralPersistenceException;
 	
+	/**
+	 * @param after the next cursor of the previous page, or null for the first page
+	 * @param limit maximum number of orders on the page
+	 * @return summaries of the caller's submitted orders, newest first
+	 */
+	public OrderHistoryPage loadOrderHistory(String after, int limit)throws CustomerDoesNotExistException,GeneralPersistenceException;
+	
+	/**
+	 * @param orderId one of the caller's orders
+	 * @return its lines, each with its product but not the product's categories
+	 */
+	public List<LineItem> loadOrderLineItems(int orderId)throws CustomerDoesNotExistException,OrderDoesNotExistException,GeneralPersistenceException;
+	
 	public void updateAddress(Address address) throws CustomerDoesNotExistException, GeneralPersistenceException;
 	
+	/**
+	 * @return when the caller's order history last changed, to the second,
+	 *         usually answered from memory; null if there is no history
+	 */
 	public Date getOrderHistoryLastUpdatedTime();
 	
+	/**
+	 * @return the caller's current order history version, usually answered
+	 *         from memory, with a null last modification time if there is
+	 *         no history
+	 */
+	public OrderHistoryVersion getOrderHistoryVersion();
+	
 	public void updateInfo(HashMap<String, Object> info)throws GeneralPersistenceException, CustomerDoesNotExistException;
 
 }
\ No newline at end of file
@@ -1,24 +1,40 @@
 package org.pwte.example.service;
 
 import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import javax.annotation.Resource;
 import javax.annotation.security.RolesAllowed;
+import javax.ejb.EJB;
 import javax.ejb.SessionContext;
 import javax.ejb.Stateless;
 import javax.persistence.EntityManager;
+import javax.persistence.NoResultException;
 import javax.persistence.PersistenceContext;
 import javax.persistence.Query;
+import javax.persistence.TemporalType;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
 
 import org.pwte.example.domain.AbstractCustomer;
 import org.pwte.example.domain.Address;
 import org.pwte.example.domain.BusinessCustomer;
 import org.pwte.example.domain.LineItem;
+import org.pwte.example.domain.LineItemChange;
 import org.pwte.example.domain.Order;
+import org.pwte.example.domain.OrderHistoryPage;
+import org.pwte.example.domain.OrderHistoryVersion;
+import org.pwte.example.domain.OrderSubmission;
+import org.pwte.example.domain.OrderSummary;
 import org.pwte.example.domain.Product;
 import org.pwte.example.domain.ResidentialCustomer;
 import org.pwte.example.exception.CustomerDoesNotExistException;
@@ -26,9 +42,11 @@ import org.pwte.example.exception.GeneralPersistenceException;
 import org.pwte.example.exception.InvalidQuantityException;
 import org.pwte.example.exception.NoLineItemsException;
 import org.pwte.example.exception.OrderAlreadyOpenException;
+import org.pwte.example.exception.OrderDoesNotExistException;
 import org.pwte.example.exception.OrderModifiedException;
 import org.pwte.example.exception.OrderNotOpenException;
 import org.pwte.example.exception.ProductDoesNotExistException;
+import org.pwte.example.exception.SubmitQueueFullException;
 
 @Stateless
 @RolesAllowed(value="SecureShopper")
@@ -39,12 +57,55 @@ public class CustomerOrderServicesImpl implements CustomerOrderServices {
 	
 	@Resource SessionContext ctx;
 	
+	@EJB
+	protected CustomerIdCache customerIds;
+	
+	@EJB
+	protected CartStore cartStore;
+	
+	@EJB
+	protected SubmitQueue submitQueue;
+	
+	@EJB
+	protected InventoryReservations inventory;
+	
+	@EJB
+	protected OrderIdGenerator orderIds;
+	
+	@Resource
+	protected TransactionSynchronizationRegistry transactions;
+	
+	private final OrderHistoryVersions historyVersions = OrderHistoryVersions.getInstance();
+	
+	private final CustomerLanes lanes = CustomerLanes.getInstance();
+	
+	/* When set, every change to an order total is checked against a full re-sum of its line items */
+	@Resource(name="verifyOrderTotals")
+	protected boolean verifyTotals = false;
+	
+	/* The same check for the whole JVM, so one server, or a test, can turn it on without redeploying */
+	static final String VERIFY_TOTALS_PROPERTY = "org.pwte.example.verifyOrderTotals";
+	
 	public Order addLineItem(LineItem newLineItem)
 			throws CustomerDoesNotExistException, OrderNotOpenException,
 			ProductDoesNotExistException,GeneralPersistenceException, InvalidQuantityException, OrderModifiedException {
 		
 		int productId = newLineItem.getProductId();
 		long quantity = newLineItem.getQuantity();
+		enterLane();
+		if(cartStore.isEnabled())
+		{
+			if(quantity <= 0 ) throw new InvalidQuantityException();
+			try
+			{
+				return changeCart(Collections.singletonList(new LineItemChange(LineItemChange.Operation.ADD, productId, quantity)), newLineItem.getVersion(), true);
+			}
+			catch (NoLineItemsException e)
+			{
+				//Only a removal finds no line
+				throw new IllegalStateException(e);
+			}
+		}
 		Product product = em.find(Product.class,productId);
 		if(quantity <= 0 ) throw new InvalidQuantityException();
 		if(product == null) throw new ProductDoesNotExistException();
@@ -56,9 +117,9 @@ public class CustomerOrderServicesImpl implements CustomerOrderServices {
 		}
 		else
 		{
+			checkNotQueued(existingOpenOrder);
 			if(existingOpenOrder.getVersion() != newLineItem.getVersion())
 			{
-				System.out.println("Version not equal: " + existingOpenOrder.getVersion() + "---"+ newLineItem.getVersion());
 				throw new OrderModifiedException();
 			}
 			else
@@ -66,36 +127,253 @@ public class CustomerOrderServicesImpl implements CustomerOrderServices {
 				existingOpenOrder.setVersion(newLineItem.getVersion());
 			}
 		}
+		LineItem lineItem = existingOpenOrder.findLineItem(productId);
+		inventory.reserve(customer.getCustomerId(), Collections.singletonMap(productId, quantity + (lineItem == null ? 0 : lineItem.getQuantity())));
 		BigDecimal amount = product.getPrice().multiply(new BigDecimal(quantity));
-		Set<LineItem> lineItems = existingOpenOrder.getLineitems();
-		if (lineItems == null ) lineItems = new HashSet<LineItem>();
-		for(LineItem lineItem:lineItems)
+		if(lineItem != null)
 		{
-			if(lineItem.getProductId() == productId)
-			{
-				lineItem.setQuantity(lineItem.getQuantity() + quantity);
-				lineItem.setAmount(lineItem.getAmount().add(amount));
-				return existingOpenOrder;
-			}
+			lineItem.setQuantity(lineItem.getQuantity() + quantity);
+			lineItem.setAmount(lineItem.getAmount().add(amount));
+			adjustTotal(existingOpenOrder, amount);
+			return existingOpenOrder;
 		}
 		
-		LineItem lineItem = new LineItem();
+		lineItem = new LineItem();
 		lineItem.setOrderId(existingOpenOrder.getOrderId());
 		lineItem.setOrder(existingOpenOrder);
 		lineItem.setProductId(product.getProductId());
 		lineItem.setAmount(amount);
 		lineItem.setProduct(product);
 		lineItem.setQuantity(quantity);
-		lineItems.add(lineItem);
-		existingOpenOrder.setLineitems(lineItems);
+		existingOpenOrder.addLineItem(lineItem);
+		adjustTotal(existingOpenOrder, amount);
 		em.persist(lineItem);
-		System.out.println("EXITING addLineItem SERVICE -> " + existingOpenOrder.getVersion());
 		return existingOpenOrder;
 	}
 
+	/**
+	 * Applies the changes in order, as if each were a separate call, but with
+	 * one version check and one flush at commit. They are first folded into
+	 * one target quantity per product and fully validated, so a batch with
+	 * any invalid change leaves the order untouched; then each product's
+	 * line is updated, created or removed once.
+	 */
+	public Order applyLineItemChanges(List<LineItemChange> changes, long version)
+			throws CustomerDoesNotExistException, OrderNotOpenException, ProductDoesNotExistException, NoLineItemsException,
+			GeneralPersistenceException, InvalidQuantityException, OrderModifiedException {
+		enterLane();
+		if(cartStore.isEnabled()) return changeCart(changes, version, !changes.isEmpty());
+		AbstractCustomer customer = loadCustomer();
+		Order existingOpenOrder = customer.getOpenOrder();
+		if(existingOpenOrder != null)
+		{
+			checkNotQueued(existingOpenOrder);
+			if(existingOpenOrder.getVersion() != version) throw new OrderModifiedException();
+			existingOpenOrder.setVersion(version);
+		}
+		else if(changes.isEmpty())
+		{
+			throw new OrderNotOpenException();
+		}
+		
+		Map<Integer, Product> products = new HashMap<Integer, Product>();
+		Map<Integer, Long> quantities = targetQuantities(changes, existingOpenOrder, products, true);
+		inventory.reserve(customer.getCustomerId(), quantities);
+		if(existingOpenOrder == null) existingOpenOrder = openOrder();
+		applyQuantities(existingOpenOrder, quantities, products, null);
+		return existingOpenOrder;
+	}
+	
+	/**
+	 * Folds the changes into the quantity each product's line should end up
+	 * with, validating all of them against the order's current lines.
+	 * @param products the products of the positive quantities, filled in as
+	 *        they are read; a product mapped to null does not exist
+	 * @param managed whether the products are read as entities or as
+	 *        detached summaries
+	 */
+	private Map<Integer, Long> targetQuantities(List<LineItemChange> changes, Order order, Map<Integer, Product> products, boolean managed)
+			throws ProductDoesNotExistException, NoLineItemsException, InvalidQuantityException {
+		Map<Integer, Long> quantities = new LinkedHashMap<Integer, Long>();
+		for(LineItemChange change:changes)
+		{
+			int productId = change.getProductId();
+			Long current = quantities.get(productId);
+			if(current == null)
+			{
+				LineItem lineItem = order == null ? null : order.findLineItem(productId);
+				current = lineItem == null ? 0 : lineItem.getQuantity();
+			}
+			long quantity;
+			switch(change.getOperation())
+			{
+				case ADD:
+					if(change.getQuantity() <= 0) throw new InvalidQuantityException();
+					quantity = current + change.getQuantity();
+					break;
+				case SET_QUANTITY:
+					if(change.getQuantity() < 0) throw new InvalidQuantityException();
+					quantity = change.getQuantity();
+					break;
+				case REMOVE:
+					if(current == 0) throw new NoLineItemsException();
+					quantity = 0;
+					break;
+				default:
+					throw new InvalidQuantityException();
+			}
+			if(quantity > 0)
+			{
+				if(!products.containsKey(productId)) products.put(productId, findProduct(productId, managed));
+				if(products.get(productId) == null) throw new ProductDoesNotExistException();
+			}
+			quantities.put(productId, quantity);
+		}
+		return quantities;
+	}
+	
+	private Product findProduct(int productId, boolean managed) {
+		if(managed) return em.find(Product.class, productId);
+		Query query = em.createNamedQuery("product.summary");
+		query.setParameter("productId", productId);
+		@SuppressWarnings("unchecked")
+		List<Object[]> rows = query.getResultList();
+		return rows.isEmpty() ? null : CatalogCache.toProduct(rows.get(0));
+	}
+	
+	/**
+	 * Updates, creates or removes each product's line once to reach its
+	 * target quantity.
+	 * @param changed null for a managed order, whose new and removed lines
+	 *        are persisted and removed here; otherwise collects the products
+	 *        whose line changed
+	 * @return whether any line changed
+	 */
+	private boolean applyQuantities(Order order, Map<Integer, Long> quantities, Map<Integer, Product> products, Set<Integer> changed) {
+		boolean modified = false;
+		for(Map.Entry<Integer, Long> target:quantities.entrySet())
+		{
+			int productId = target.getKey();
+			long quantity = target.getValue();
+			LineItem lineItem = order.findLineItem(productId);
+			if(lineItem == null)
+			{
+				if(quantity == 0) continue;
+				Product product = products.get(productId);
+				lineItem = new LineItem();
+				lineItem.setOrderId(order.getOrderId());
+				if(changed == null) lineItem.setOrder(order);
+				lineItem.setProductId(productId);
+				lineItem.setProduct(product);
+				lineItem.setQuantity(quantity);
+				lineItem.setAmount(product.getPrice().multiply(new BigDecimal(quantity)));
+				order.addLineItem(lineItem);
+				adjustTotal(order, lineItem.getAmount());
+				if(changed == null) em.persist(lineItem);
+			}
+			else if(quantity == 0)
+			{
+				order.removeLineItem(productId);
+				adjustTotal(order, lineItem.getAmount().negate());
+				if(changed == null) em.remove(lineItem);
+			}
+			else if(quantity != lineItem.getQuantity())
+			{
+				BigDecimal delta = products.get(productId).getPrice().multiply(new BigDecimal(quantity - lineItem.getQuantity()));
+				lineItem.setQuantity(quantity);
+				lineItem.setAmount(lineItem.getAmount().add(delta));
+				adjustTotal(order, delta);
+			}
+			else
+			{
+				continue;
+			}
+			if(changed != null) changed.add(productId);
+			modified = true;
+		}
+		return modified;
+	}
+	
+	/**
+	 * Applies the changes to the caller's cart in the {@link CartStore}
+	 * instead of the database. The cart's version is the order's ETag and
+	 * moves forward with every change, ahead of the version last written.
+	 * @param create whether an order is opened if the caller has none
+	 * @return a copy of the changed order
+	 */
+	private Order changeCart(List<LineItemChange> changes, long version, boolean create)
+			throws CustomerDoesNotExistException, OrderNotOpenException, ProductDoesNotExistException, NoLineItemsException,
+			GeneralPersistenceException, InvalidQuantityException, OrderModifiedException {
+		//Read the products before taking the cart's lock; any others are read under it
+		Map<Integer, Product> products = new HashMap<Integer, Product>();
+		for(LineItemChange change:changes)
+		{
+			if(change.getOperation() != LineItemChange.Operation.REMOVE && change.getQuantity() > 0 && !products.containsKey(change.getProductId()))
+			{
+				products.put(change.getProductId(), findProduct(change.getProductId(), false));
+			}
+		}
+		while(true)
+		{
+			OpenCart cart = openCart(changes, products, create);
+			Order snapshot;
+			synchronized(cart)
+			{
+				//Dropped after a conflicting write or a submit; read the order again
+				if(cart.evicted) continue;
+				checkNotQueued(cart.order);
+				if(!cart.fresh && cart.order.getVersion() != version) throw new OrderModifiedException();
+				Map<Integer, Long> quantities = targetQuantities(changes, cart.order, products, false);
+				inventory.reserve(cart.customerId, quantities);
+				if(applyQuantities(cart.order, quantities, products, cart.changedProducts))
+				{
+					cart.order.setVersion(cart.order.getVersion() + 1);
+				}
+				cart.fresh = false;
+				snapshot = OpenCart.copy(cart.order);
+			}
+			return snapshot;
+		}
+	}
+	
+	/**
+	 * @return the caller's cart, read from the open order if the store does
+	 *         not hold it yet
+	 */
+	private OpenCart openCart(List<LineItemChange> changes, Map<Integer, Product> products, boolean create)
+			throws CustomerDoesNotExistException, OrderNotOpenException, ProductDoesNotExistException, NoLineItemsException,
+			GeneralPersistenceException, InvalidQuantityException {
+		String user = ctx.getCallerPrincipal().getName();
+		Integer customerId = customerId(user);
+		if(customerId == null) throw new CustomerDoesNotExistException();
+		OpenCart cart = cartStore.get(customerId);
+		if(cart != null) return cart;
+		
+		AbstractCustomer customer = findCustomer();
+		Order order = customer.getOpenOrder();
+		boolean fresh = false;
+		if(order == null || order.getStatus() != Order.Status.OPEN)
+		{
+			if(!create) throw new OrderNotOpenException();
+			//Validate before opening, so an invalid change leaves no empty order behind
+			targetQuantities(changes, null, products, false);
+			//Has its id already; inserted now, so the cart starts at the version the row gets
+			order = openOrder();
+			em.flush();
+			fresh = true;
+		}
+		cart = new OpenCart(customer.getCustomerId(), user, OpenCart.copy(order));
+		cart.fresh = fresh;
+		cart.inserting = fresh;
+		OpenCart held = cartStore.add(cart);
+		if(held == cart && fresh) cartStore.insertedOnCompletion(cart, order);
+		return held;
+	}
+
 	public Order openOrder()
 			throws CustomerDoesNotExistException, OrderAlreadyOpenException ,GeneralPersistenceException{
-		AbstractCustomer customer = loadCustomer();
+		enterLane();
+		AbstractCustomer customer = findCustomer();
 		Order existingOpenOrder = customer.getOpenOrder();
 		if(existingOpenOrder != null)
 		{
@@ -103,9 +381,9 @@ public class CustomerOrderServicesImpl implements CustomerOrderServices {
 		}
 		
 		Order newOrder = new Order();
+		newOrder.setOrderId(orderIds.next());
 		newOrder.setCustomer(customer);
 		newOrder.setStatus(Order.Status.OPEN);
-		System.out.println(newOrder.getStatus());
 		newOrder.setTotal(new BigDecimal(0));
 		
 		em.persist(newOrder);
@@ -116,7 +394,32 @@ public class CustomerOrderServicesImpl implements CustomerOrderServices {
 
 	public void submit(long version) throws CustomerDoesNotExistException,
 			OrderNotOpenException, NoLineItemsException,GeneralPersistenceException, OrderModifiedException {
+		try
+		{
+			submit(version, false);
+		}
+		catch (SubmitQueueFullException e)
+		{
+			//Only a queued submission can find the queue full
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	public OrderSubmission submitOrder(long version) throws CustomerDoesNotExistException, OrderNotOpenException, NoLineItemsException,
+			GeneralPersistenceException, OrderModifiedException, SubmitQueueFullException {
+		return submit(version, submitQueue.isEnabled());
+	}
+	
+	/**
+	 * Validates the open order and either submits it or hands it to the
+	 * {@link SubmitQueue}, which submits it with the same version check.
+	 */
+	private OrderSubmission submit(long version, boolean queue) throws CustomerDoesNotExistException,
+			OrderNotOpenException, NoLineItemsException,GeneralPersistenceException, OrderModifiedException, SubmitQueueFullException {
+		enterLane();
+		//Writes the caller's cart first, if it is held
 		AbstractCustomer customer = loadCustomer();
+		if(cartStore.isEnabled()) cartStore.evictAfterCommit(customer.getCustomerId());
 		Order existingOpenOrder = customer.getOpenOrder();
 		if(existingOpenOrder == null || existingOpenOrder.getStatus() != Order.Status.OPEN)
 		{
@@ -135,17 +438,35 @@ public class CustomerOrderServicesImpl implements CustomerOrderServices {
 		}
 		if(existingOpenOrder.getLineitems() == null || existingOpenOrder.getLineitems().size() <= 0 )
 			throw new NoLineItemsException();
+		inventory.reserveOrder(customer.getCustomerId(), lineQuantities(existingOpenOrder));
+		if(queue) return submitQueue.offer(existingOpenOrder.getOrderId(), customer.getCustomerId(), customer.getUser(), version);
 		
 		existingOpenOrder.setStatus(Order.Status.SUBMITTED);
 		existingOpenOrder.setSubmittedTime(new Date());
 		customer.setOpenOrder(null);
+		inventory.commitOnCompletion(customer.getCustomerId());
+		historyChanged();
+		return new OrderSubmission(existingOpenOrder.getOrderId(), OrderSubmission.State.SUBMITTED, null, existingOpenOrder.getSubmittedTime(), null);
 	}
 
 	
 
 	public Order removeLineItem(int productId,long version) throws CustomerDoesNotExistException, OrderNotOpenException, ProductDoesNotExistException, NoLineItemsException, GeneralPersistenceException, OrderModifiedException {
+		enterLane();
 		Product product = em.find(Product.class,productId);
 		if(product == null) throw new ProductDoesNotExistException();
+		if(cartStore.isEnabled())
+		{
+			try
+			{
+				return changeCart(Collections.singletonList(new LineItemChange(LineItemChange.Operation.REMOVE, productId, 0)), version, false);
+			}
+			catch (InvalidQuantityException e)
+			{
+				//A removal has no quantity
+				throw new IllegalStateException(e);
+			}
+		}
 		
 		AbstractCustomer customer = loadCustomer();
 		Order existingOpenOrder = customer.getOpenOrder();
@@ -155,6 +476,7 @@ public class CustomerOrderServicesImpl implements CustomerOrderServices {
 		}
 		else
 		{
+			checkNotQueued(existingOpenOrder);
 			if(existingOpenOrder.getVersion() != version)
 			{
 				throw new OrderModifiedException();
@@ -164,19 +486,80 @@ public class CustomerOrderServicesImpl implements CustomerOrderServices {
 				existingOpenOrder.setVersion(version);
 			}
 		}
-		Set<LineItem> lineItems = existingOpenOrder.getLineitems();
-		for(LineItem lineItem:lineItems)
+		LineItem lineItem = existingOpenOrder.removeLineItem(productId);
+		if(lineItem == null) throw new NoLineItemsException();
+		inventory.reserve(customer.getCustomerId(), Collections.singletonMap(productId, 0L));
+		adjustTotal(existingOpenOrder, lineItem.getAmount().negate());
+		em.remove(lineItem);
+		return existingOpenOrder;
+	}
+	
+	private static Map<Integer, Long> lineQuantities(Order order) {
+		Map<Integer, Long> quantities = new HashMap<Integer, Long>();
+		for(LineItem lineItem:order.getLineitems())
 		{
-			if(lineItem.getProductId() == productId)
-			{
-				lineItems.remove(lineItem);
-				existingOpenOrder.setLineitems(lineItems);
-				em.remove(lineItem);
-				return existingOpenOrder;
+			quantities.put(lineItem.getProductId(), lineItem.getQuantity());
+		}
+		return quantities;
+	}
+	
+	/**
+	 * Waits until the caller's earlier changes have committed, so this one
+	 * reads the order as they left it. Held until the transaction completes.
+	 */
+	private void enterLane() throws CustomerDoesNotExistException {
+		Integer customerId = customerId(ctx.getCallerPrincipal().getName());
+		if(customerId == null) throw new CustomerDoesNotExistException();
+		lanes.enter(customerId, transactions);
+	}
+	
+	/**
+	 * An order waiting in the submit queue takes no more changes, which
+	 * would only make its submission fail.
+	 */
+	private void checkNotQueued(Order order) throws OrderNotOpenException {
+		if(submitQueue.isQueued(order.getOrderId())) throw new OrderNotOpenException();
+	}
+	
+	/**
+	 * Moves the caller's order history time forward once the current
+	 * transaction commits. Moving it before the commit would let a request
+	 * read the old history and label it with the new time. Only submitting
+	 * an order changes the history; cart edits do not, just as the time
+	 * read from the database is that of the last submitted order.
+	 */
+	private void historyChanged() {
+		final String user = ctx.getCallerPrincipal().getName();
+		transactions.registerInterposedSynchronization(new Synchronization() {
+			public void beforeCompletion() {
+			}
+
+			public void afterCompletion(int status) {
+				if(status == Status.STATUS_COMMITTED) historyVersions.changed(user);
 			}
-			
+		});
+	}
+	
+	/**
+	 * Applies the change in amount of one line item to the order total, so
+	 * no mutation has to re-sum the whole order.
+	 */
+	private void adjustTotal(Order order, BigDecimal delta) {
+		BigDecimal total = order.getTotal() == null ? BigDecimal.ZERO : order.getTotal();
+		order.setTotal(total.add(delta).setScale(2, RoundingMode.HALF_UP));
+		if(verifyTotals || Boolean.getBoolean(VERIFY_TOTALS_PROPERTY)) verifyTotal(order);
+	}
+	
+	private static void verifyTotal(Order order) {
+		BigDecimal sum = BigDecimal.ZERO;
+		for(LineItem lineItem:order.getLineitems())
+		{
+			sum = sum.add(lineItem.getAmount());
+		}
+		if(sum.compareTo(order.getTotal()) != 0)
+		{
+			throw new IllegalStateException("Order " + order.getOrderId() + " total " + order.getTotal() + " but its line items sum to " + sum);
 		}
-		throw new NoLineItemsException();
 	}
 	
 	
@@ -193,11 +576,63 @@ public class CustomerOrderServicesImpl implements CustomerOrderServices {
 	
 	*/
 	
+	/**
+	 * Reads the caller's customer, with the open order as last changed: a
+	 * cart held by the {@link CartStore} is written out first.
+	 */
 	public AbstractCustomer loadCustomer() throws CustomerDoesNotExistException,GeneralPersistenceException {
+		if(cartStore.isEnabled())
+		{
+			Integer customerId = customerId(ctx.getCallerPrincipal().getName());
+			if(customerId != null) cartStore.flush(customerId);
+		}
+		return findCustomer();
+	}
+	
+	/**
+	 * Reads the caller's customer by primary key, with the id remembered from
+	 * an earlier lookup by user name. A remembered id whose customer no
+	 * longer belongs to the caller is dropped and looked up again.
+	 */
+	private AbstractCustomer findCustomer() throws CustomerDoesNotExistException,GeneralPersistenceException {
 		String user = ctx.getCallerPrincipal().getName();
-		Query query = em.createQuery("select c from AbstractCustomer c where c.user = :user");
+		Integer customerId = customerIds.get(user);
+		if(customerId != null)
+		{
+			AbstractCustomer customer = em.find(AbstractCustomer.class, customerId);
+			//Instance Security Check
+			if(customer != null && user.equals(customer.getUser())) return customer;
+			customerIds.evict(user);
+		}
+		customerId = findCustomerId(user);
+		if(customerId == null) throw new CustomerDoesNotExistException();
+		AbstractCustomer customer = em.find(AbstractCustomer.class, customerId);
+		if(customer == null) throw new CustomerDoesNotExistException();
+		return customer;
+	}
+	
+	/**
+	 * @return the id of the user's customer, remembered or looked up by
+	 *         USERNAME, or null if the user has none
+	 */
+	private Integer customerId(String user) {
+		Integer customerId = customerIds.get(user);
+		return customerId != null ? customerId : findCustomerId(user);
+	}
+	
+	private Integer findCustomerId(String user) {
+		Query query = em.createQuery("select c.customerId from AbstractCustomer c where c.user = :user");
 		query.setParameter("user", user);
-		return (AbstractCustomer)query.getSingleResult();
+		try
+		{
+			int customerId = ((Number)query.getSingleResult()).intValue();
+			customerIds.put(user, customerId);
+			return customerId;
+		}
+		catch (NoResultException e)
+		{
+			return null;
+		}
 	}
 	/*
 	private AbstractCustomer loadCustomer(int customerId) throws CustomerDoesNotExistException,GeneralPersistenceException {
@@ -214,24 +649,143 @@ public class CustomerOrderServicesImpl implements CustomerOrderServices {
 		return customer.getOrders();
 	}
 	
+	/**
+	 * Pages through the caller's submitted orders newest first. The cursor
+	 * is the submit time and id of the last order of the previous page, so
+	 * every page is one indexed seek however deep it is.
+	 */
+	@SuppressWarnings("unchecked")
+	public OrderHistoryPage loadOrderHistory(String after, int limit) throws CustomerDoesNotExistException, GeneralPersistenceException {
+		String user = ctx.getCallerPrincipal().getName();
+		Integer customerId = customerId(user);
+		if(customerId == null) throw new CustomerDoesNotExistException();
+		Query query;
+		if(after == null)
+		{
+			query = em.createNamedQuery("order.history");
+		}
+		else
+		{
+			int separator = after.indexOf('.');
+			if(separator < 0) throw new IllegalArgumentException(after);
+			query = em.createNamedQuery("order.history.after");
+			query.setParameter("submittedTime", new Date(Long.parseLong(after.substring(0, separator))), TemporalType.TIMESTAMP);
+			query.setParameter("orderId", Integer.parseInt(after.substring(separator + 1)));
+		}
+		query.setParameter("customerId", customerId);
+		query.setParameter("user", user);
+		query.setMaxResults(limit + 1);
+		List<Object[]> rows = query.getResultList();
+		
+		List<OrderSummary> orders = new ArrayList<OrderSummary>(Math.min(rows.size(), limit));
+		for(int i = 0; i < rows.size() && i < limit; i++)
+		{
+			Object[] row = rows.get(i);
+			orders.add(new OrderSummary(((Number)row[0]).intValue(), (Order.Status)row[1], (Date)row[2], (BigDecimal)row[3], ((Number)row[4]).intValue()));
+		}
+		String next = null;
+		if(rows.size() > limit)
+		{
+			OrderSummary last = orders.get(orders.size() - 1);
+			next = last.getSubmittedTime().getTime() + "." + last.getOrderId();
+		}
+		return new OrderHistoryPage(orders, next);
+	}
+	
+	/**
+	 * Reads the lines of one of the caller's orders as a projection, so
+	 * neither the order nor the categories of its products are loaded.
+	 */
+	@SuppressWarnings("unchecked")
+	public List<LineItem> loadOrderLineItems(int orderId) throws CustomerDoesNotExistException, OrderDoesNotExistException, GeneralPersistenceException {
+		String user = ctx.getCallerPrincipal().getName();
+		Integer customerId = customerId(user);
+		if(customerId == null) throw new CustomerDoesNotExistException();
+		if(cartStore.isEnabled()) cartStore.flush(customerId);
+		Query query = em.createNamedQuery("lineitem.by.order");
+		query.setParameter("orderId", orderId);
+		query.setParameter("customerId", customerId);
+		query.setParameter("user", user);
+		List<Object[]> rows = query.getResultList();
+		if(rows.isEmpty())
+		{
+			Query exists = em.createNamedQuery("order.exists");
+			exists.setParameter("orderId", orderId);
+			exists.setParameter("customerId", customerId);
+			exists.setParameter("user", user);
+			if(((Number)exists.getSingleResult()).intValue() == 0) throw new OrderDoesNotExistException();
+		}
+		
+		List<LineItem> lineItems = new ArrayList<LineItem>(rows.size());
+		for(Object[] row:rows)
+		{
+			LineItem lineItem = new LineItem();
+			lineItem.setOrderId(orderId);
+			lineItem.setProductId(((Number)row[0]).intValue());
+			lineItem.setQuantity(((Number)row[1]).longValue());
+			lineItem.setAmount((BigDecimal)row[2]);
+			lineItem.setProduct(CatalogCache.toProduct(new Object[]{row[0], row[3], row[4], row[5], row[6]}));
+			lineItems.add(lineItem);
+		}
+		return lineItems;
+	}
+	
+	/**
+	 * Answers from the {@link SubmitQueue} while it remembers the order,
+	 * otherwise from the order's status.
+	 */
+	public OrderSubmission loadSubmission(int orderId) throws CustomerDoesNotExistException, OrderDoesNotExistException, GeneralPersistenceException {
+		String user = ctx.getCallerPrincipal().getName();
+		Integer customerId = customerId(user);
+		if(customerId == null) throw new CustomerDoesNotExistException();
+		OrderSubmission submission = submitQueue.getSubmission(orderId, user);
+		if(submission != null) return submission;
+		Query query = em.createNamedQuery("order.status");
+		query.setParameter("orderId", orderId);
+		query.setParameter("customerId", customerId);
+		query.setParameter("user", user);
+		@SuppressWarnings("unchecked")
+		List<Object[]> rows = query.getResultList();
+		if(rows.isEmpty()) throw new OrderDoesNotExistException();
+		Order.Status status = (Order.Status)rows.get(0)[0];
+		OrderSubmission.State state = status == Order.Status.OPEN ? OrderSubmission.State.OPEN : OrderSubmission.State.SUBMITTED;
+		return new OrderSubmission(orderId, state, null, (Date)rows.get(0)[1], null);
+	}
+	
 	public Date getOrderHistoryLastUpdatedTime()
+	{
+		OrderHistoryVersion version = getOrderHistoryVersion();
+		return version == null ? null : version.getLastModified();
+	}
+	
+	public OrderHistoryVersion getOrderHistoryVersion()
 	{
 		String user = ctx.getCallerPrincipal().getName();
-		Query query = em.createQuery("select MAX(o.submittedTime) from Order o join  o.customer c where c.user = :user");
-		query.setParameter("user", user);
-		return (Date)query.getSingleResult();
+		OrderHistoryVersion version = historyVersions.get(user);
+		if(version == null)
+		{
+			Integer customerId = customerId(user);
+			if(customerId == null) return null;
+			//The join is by primary key; the user check guards against a stale id
+			Query query = em.createQuery("select MAX(o.submittedTime) from Order o join o.customer c where c.customerId = :customerId and c.user = :user");
+			query.setParameter("customerId", customerId);
+			query.setParameter("user", user);
+			Date submitted = (Date)query.getSingleResult();
+			version = historyVersions.loaded(user, submitted == null ? 0 : submitted.getTime());
+		}
+		return version;
 	}
 
 	public void updateAddress(Address address)
 			throws CustomerDoesNotExistException, GeneralPersistenceException {
-		AbstractCustomer customer = loadCustomer();
+		AbstractCustomer customer = findCustomer();
 		customer.setAddress(address);
 	}
 	
 	
 	public void updateInfo(HashMap<String, Object> info)throws GeneralPersistenceException, CustomerDoesNotExistException
 	{
-		AbstractCustomer customer = loadCustomer();
+		AbstractCustomer customer = findCustomer();
 		if(info.get("type").equals("BUSINESS"))
 		{
 			((BusinessCustomer)customer).setDescription((String)info.get("description"));
@@ -0,0 +1,519 @@
+package org.pwte.example.service;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.EJBException;
+import javax.ejb.SessionContext;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.ejb.Timeout;
+import javax.ejb.Timer;
+import javax.ejb.TimerConfig;
+import javax.ejb.TimerService;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.Query;
+import javax.sql.DataSource;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import org.pwte.example.domain.Order;
+import org.pwte.example.exception.OutOfStockException;
+
+/**
+ * Stock of each product in the inventory database, used when the
+ * inventoryReservations environment entry is set. An inventory SKU is the
+ * product id; products without an inventory row are not limited.
+ *
+ * Every open order reserves the quantities of its lines from an in-memory
+ * count of what is available, taken with a compare-and-set, so adding to a
+ * cart never touches the inventory database. A reservation is kept per
+ * customer, since a customer has at most one open order and a new order has
+ * no id until it is flushed. Submitting an order turns its reservation into
+ * a pending decrement; every inventoryFlushMillis the pending decrements of
+ * all products are written in one batch, each only if the row still has
+ * the VERSION last read, so stock added by someone else is read back in
+ * rather than overwritten. A reservation not touched for reservationMillis
+ * counts as abandoned and is released; the order reserves again when it
+ * changes or is submitted.
+ *
+ * The counts are this server's own copy of INSTOCK, so, like the
+ * {@link CartStore}, this mode expects a single server: two servers can
+ * each reserve the last units. A decrement is only written while INSTOCK
+ * covers it, so stock sold twice never goes negative; the decrement stays
+ * pending, the product is reported short in {@link #getStatistics()}, and
+ * it is written once stock has been added.
+ *
+ * Until the first load from the database completes, nothing is limited.
+ */
+@Singleton
+@Startup
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class InventoryReservations {
+
+	private static final String SELECT_STOCK_SQL = "select sku, instock, version from product";
+	private static final String SELECT_SKU_SQL = "select instock, version from product where sku = ?";
+	private static final String UPDATE_STOCK_SQL = "update product set instock = instock - ?, version = version + 1 where sku = ? and version = ? and instock >= ?";
+
+	@PersistenceContext
+	protected EntityManager em;
+
+	@Resource(name="jdbc/inds")
+	protected DataSource inventory;
+
+	@Resource
+	protected SessionContext context;
+
+	@Resource
+	protected TimerService timerService;
+
+	@Resource
+	protected TransactionSynchronizationRegistry transactions;
+
+	@Resource(name="inventoryReservations")
+	protected boolean enabled = false;
+
+	/* Turns reservations on for the whole JVM without redeploying, for tests; stock is then only read and written by calls to load() and flush() */
+	static final String RESERVATIONS_PROPERTY = "org.pwte.example.inventoryReservations";
+
+	@Resource(name="inventoryFlushMillis")
+	protected long flushMillis = 5000;
+
+	@Resource(name="reservationMillis")
+	protected long reservationMillis = 30 * 60 * 1000;
+
+	/* One product's stock; instock, version and shortfall are guarded by flushLock */
+	static final class Stock {
+		final int sku;
+		/* INSTOCK less everything reserved and pending */
+		final AtomicLong available;
+		final AtomicLong reserved = new AtomicLong();
+		/* Sold but not yet written to INSTOCK */
+		final AtomicLong pending = new AtomicLong();
+		long instock;
+		long version;
+		/* How much of pending INSTOCK did not cover when last written, 0 if it did */
+		long shortfall;
+
+		Stock(int sku, long instock, long version) {
+			this.sku = sku;
+			this.instock = instock;
+			this.version = version;
+			this.available = new AtomicLong(instock);
+		}
+
+		boolean take(long quantity) {
+			while (true) {
+				long available = this.available.get();
+				if (available < quantity) return false;
+				if (this.available.compareAndSet(available, available - quantity)) {
+					reserved.addAndGet(quantity);
+					return true;
+				}
+			}
+		}
+
+		/* Takes whether or not enough is available, to restore a reservation */
+		void force(long quantity) {
+			available.addAndGet(-quantity);
+			reserved.addAndGet(quantity);
+		}
+
+		void give(long quantity) {
+			reserved.addAndGet(-quantity);
+			available.addAndGet(quantity);
+		}
+	}
+
+	/* The quantities one customer's open order holds; guarded by its own monitor */
+	static final class Reservation {
+		final Map<Integer, Long> quantities = new HashMap<Integer, Long>();
+		long lastTouched = System.currentTimeMillis();
+		boolean released;
+	}
+
+	private volatile Map<Integer, Stock> stocks = new ConcurrentHashMap<Integer, Stock>();
+	private volatile Map<Integer, Reservation> reservations = new ConcurrentHashMap<Integer, Reservation>();
+	private volatile boolean loaded;
+	private final Object flushLock = new Object();
+
+	@PostConstruct
+	void schedule() {
+		if (enabled) {
+			timerService.createIntervalTimer(0, flushMillis, new TimerConfig("inventory flush", false));
+		}
+	}
+
+	public boolean isEnabled() {
+		return enabled || Boolean.getBoolean(RESERVATIONS_PROPERTY);
+	}
+
+	/**
+	 * Reserves or releases stock so the customer's open order holds the
+	 * given quantity of each product in the map, leaving other products as
+	 * they are. Changes are undone if the transaction rolls back.
+	 * @throws OutOfStockException if any product is short, having changed
+	 *         nothing
+	 */
+	public void reserve(int customerId, Map<Integer, Long> quantities) {
+		adjust(customerId, quantities, false);
+	}
+
+	/**
+	 * Like {@link #reserve(int, Map)}, but releases products the order no
+	 * longer has, so the reservation matches the order's lines exactly.
+	 */
+	public void reserveOrder(int customerId, Map<Integer, Long> lines) {
+		adjust(customerId, lines, true);
+	}
+
+	private void adjust(int customerId, Map<Integer, Long> quantities, boolean exact) {
+		if (!isEnabled() || !loaded) return;
+		Map<Integer, Stock> stocks = this.stocks;
+		final Reservation reservation = reservation(customerId);
+		final Map<Integer, Long> previous = new HashMap<Integer, Long>();
+		synchronized (reservation) {
+			Map<Integer, Long> targets = quantities;
+			if (exact) {
+				targets = new HashMap<Integer, Long>(quantities);
+				for (Integer sku : reservation.quantities.keySet()) {
+					if (!targets.containsKey(sku)) targets.put(sku, 0L);
+				}
+			}
+			for (Map.Entry<Integer, Long> target : targets.entrySet()) {
+				Stock stock = stocks.get(target.getKey());
+				if (stock == null) continue;
+				Long held = reservation.quantities.get(stock.sku);
+				long delta = target.getValue() - (held == null ? 0 : held);
+				if (delta == 0) continue;
+				if (delta > 0 && !stock.take(delta)) {
+					restore(reservation, previous);
+					throw new OutOfStockException("Product " + stock.sku + " has " + stock.available.get() + " available");
+				}
+				if (delta < 0) stock.give(-delta);
+				if (!previous.containsKey(stock.sku)) previous.put(stock.sku, held == null ? 0 : held);
+				set(reservation, stock.sku, target.getValue());
+			}
+			reservation.lastTouched = System.currentTimeMillis();
+		}
+		if (previous.isEmpty() || transactions.getTransactionKey() == null) return;
+		transactions.registerInterposedSynchronization(new Synchronization() {
+			public void beforeCompletion() {
+			}
+
+			public void afterCompletion(int status) {
+				if (status == Status.STATUS_COMMITTED) return;
+				synchronized (reservation) {
+					restore(reservation, previous);
+				}
+			}
+		});
+	}
+
+	/* Puts the reservation's quantities back to the previous ones, guarded by its monitor */
+	private void restore(Reservation reservation, Map<Integer, Long> previous) {
+		if (reservation.released) return;
+		for (Map.Entry<Integer, Long> quantity : previous.entrySet()) {
+			Stock stock = stocks.get(quantity.getKey());
+			if (stock == null) continue;
+			Long held = reservation.quantities.get(stock.sku);
+			long delta = quantity.getValue() - (held == null ? 0 : held);
+			if (delta > 0) stock.force(delta);
+			if (delta < 0) stock.give(-delta);
+			set(reservation, stock.sku, quantity.getValue());
+		}
+	}
+
+	private static void set(Reservation reservation, int sku, long quantity) {
+		if (quantity == 0) {
+			reservation.quantities.remove(sku);
+		} else {
+			reservation.quantities.put(sku, quantity);
+		}
+	}
+
+	private Reservation reservation(int customerId) {
+		while (true) {
+			Map<Integer, Reservation> reservations = this.reservations;
+			Reservation reservation = reservations.get(customerId);
+			if (reservation == null) {
+				synchronized (reservations) {
+					reservation = reservations.get(customerId);
+					if (reservation == null) {
+						reservation = new Reservation();
+						reservations.put(customerId, reservation);
+					}
+				}
+			}
+			synchronized (reservation) {
+				if (!reservation.released) return reservation;
+			}
+			reservations.remove(customerId, reservation);
+		}
+	}
+
+	/**
+	 * Once the current transaction commits, turns what the customer's order
+	 * reserves into pending decrements of the stock, for an order submitted
+	 * in it.
+	 */
+	public void commitOnCompletion(final int customerId) {
+		if (!isEnabled() || !loaded) return;
+		transactions.registerInterposedSynchronization(new Synchronization() {
+			public void beforeCompletion() {
+			}
+
+			public void afterCompletion(int status) {
+				if (status != Status.STATUS_COMMITTED) return;
+				Reservation reservation = reservations.get(customerId);
+				if (reservation == null) return;
+				synchronized (reservation) {
+					if (reservation.released) return;
+					for (Map.Entry<Integer, Long> quantity : reservation.quantities.entrySet()) {
+						Stock stock = stocks.get(quantity.getKey());
+						if (stock == null) continue;
+						stock.reserved.addAndGet(-quantity.getValue());
+						stock.pending.addAndGet(quantity.getValue());
+					}
+					reservation.quantities.clear();
+					reservation.released = true;
+				}
+				reservations.remove(customerId, reservation);
+			}
+		});
+	}
+
+	@Timeout
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+	void onTimer(Timer timer) {
+		InventoryReservations self = context.getBusinessObject(InventoryReservations.class);
+		try {
+			if (!loaded) {
+				self.load();
+			} else {
+				self.flush();
+			}
+		} catch (RuntimeException e) {
+			// Tried again on the next run
+			e.printStackTrace(System.out);
+		}
+		if (loaded) releaseAbandoned();
+	}
+
+	/**
+	 * Reads every product's stock, and the lines of every open order as the
+	 * starting reservations.
+	 */
+	@SuppressWarnings("unchecked")
+	@TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+	public void load() {
+		Map<Integer, Stock> stocks = new ConcurrentHashMap<Integer, Stock>();
+		try {
+			Connection connection = inventory.getConnection();
+			try {
+				Statement statement = connection.createStatement();
+				ResultSet rows = statement.executeQuery(SELECT_STOCK_SQL);
+				while (rows.next()) {
+					stocks.put(rows.getInt(1), new Stock(rows.getInt(1), rows.getLong(2), rows.getLong(3)));
+				}
+				statement.close();
+			} finally {
+				connection.close();
+			}
+		} catch (SQLException e) {
+			throw new EJBException(e);
+		}
+
+		Map<Integer, Reservation> reservations = new ConcurrentHashMap<Integer, Reservation>();
+		Query query = em.createNamedQuery("lineitem.open.quantities");
+		query.setParameter("status", Order.Status.OPEN);
+		for (Object[] row : (List<Object[]>) query.getResultList()) {
+			Stock stock = stocks.get(((Number) row[1]).intValue());
+			if (stock == null) continue;
+			int customerId = ((Number) row[0]).intValue();
+			long quantity = ((Number) row[2]).longValue();
+			Reservation reservation = reservations.get(customerId);
+			if (reservation == null) {
+				reservation = new Reservation();
+				reservations.put(customerId, reservation);
+			}
+			stock.force(quantity);
+			reservation.quantities.put(stock.sku, quantity);
+		}
+		synchronized (flushLock) {
+			this.stocks = stocks;
+			this.reservations = reservations;
+			loaded = true;
+		}
+	}
+
+	/**
+	 * Writes the pending decrements of every product in one batch. A row
+	 * whose VERSION moved, or whose INSTOCK no longer covers the decrement,
+	 * is read back in, and its decrement is written on a later flush.
+	 * @return the number of products written
+	 */
+	@TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+	public int flush() {
+		synchronized (flushLock) {
+			final List<Stock> written = new ArrayList<Stock>();
+			final List<Long> decrements = new ArrayList<Long>();
+			for (Stock stock : stocks.values()) {
+				long decrement = stock.pending.getAndSet(0);
+				if (decrement != 0) {
+					written.add(stock);
+					decrements.add(decrement);
+				}
+			}
+			if (written.isEmpty()) return 0;
+			final boolean[] conflicts = new boolean[written.size()];
+			transactions.registerInterposedSynchronization(new Synchronization() {
+				public void beforeCompletion() {
+				}
+
+				public void afterCompletion(int status) {
+					synchronized (flushLock) {
+						for (int i = 0; i < conflicts.length; i++) {
+							if (conflicts[i]) continue;
+							Stock stock = written.get(i);
+							if (status == Status.STATUS_COMMITTED) {
+								stock.instock -= decrements.get(i);
+								stock.version++;
+								stock.shortfall = 0;
+							} else {
+								stock.pending.addAndGet(decrements.get(i));
+							}
+						}
+					}
+				}
+			});
+
+			int count = 0;
+			try {
+				Connection connection = inventory.getConnection();
+				try {
+					PreparedStatement update = connection.prepareStatement(UPDATE_STOCK_SQL);
+					for (int i = 0; i < written.size(); i++) {
+						update.setLong(1, decrements.get(i));
+						update.setInt(2, written.get(i).sku);
+						update.setLong(3, written.get(i).version);
+						update.setLong(4, decrements.get(i));
+						update.addBatch();
+					}
+					int[] counts = update.executeBatch();
+					update.close();
+					for (int i = 0; i < counts.length; i++) {
+						if (counts[i] == 0) {
+							Stock stock = written.get(i);
+							conflicts[i] = true;
+							stock.pending.addAndGet(decrements.get(i));
+							reload(connection, stock);
+							stock.shortfall = Math.max(0, stock.pending.get() - stock.instock);
+						} else {
+							count++;
+						}
+					}
+				} finally {
+					connection.close();
+				}
+			} catch (SQLException e) {
+				throw new EJBException(e);
+			}
+			return count;
+		}
+	}
+
+	/* Reads one product's row again and moves its available count by how much INSTOCK changed */
+	private void reload(Connection connection, Stock stock) throws SQLException {
+		PreparedStatement select = connection.prepareStatement(SELECT_SKU_SQL);
+		select.setInt(1, stock.sku);
+		ResultSet row = select.executeQuery();
+		if (row.next()) {
+			long instock = row.getLong(1);
+			stock.available.addAndGet(instock - stock.instock);
+			stock.instock = instock;
+			stock.version = row.getLong(2);
+		}
+		select.close();
+	}
+
+	private void releaseAbandoned() {
+		long before = System.currentTimeMillis() - reservationMillis;
+		for (Iterator<Reservation> it = reservations.values().iterator(); it.hasNext();) {
+			Reservation reservation = it.next();
+			synchronized (reservation) {
+				if (reservation.lastTouched >= before) continue;
+				for (Map.Entry<Integer, Long> quantity : reservation.quantities.entrySet()) {
+					Stock stock = stocks.get(quantity.getKey());
+					if (stock != null) stock.give(quantity.getValue());
+				}
+				reservation.quantities.clear();
+				reservation.released = true;
+			}
+			it.remove();
+		}
+	}
+
+	@PreDestroy
+	@TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+	void flushOnShutdown() {
+		if (isEnabled() && loaded) flush();
+	}
+
+	/**
+	 * @return the products counted, the units reserved and pending now, and
+	 *         the products and units sold beyond what INSTOCK holds
+	 */
+	public Map<String, Long> getStatistics() {
+		long reserved = 0;
+		long pending = 0;
+		long shortProducts = 0;
+		long shortUnits = 0;
+		synchronized (flushLock) {
+			for (Stock stock : stocks.values()) {
+				reserved += stock.reserved.get();
+				pending += stock.pending.get();
+				if (stock.shortfall > 0) {
+					shortProducts++;
+					shortUnits += stock.shortfall;
+				}
+			}
+		}
+		Map<String, Long> statistics = new LinkedHashMap<String, Long>();
+		statistics.put("products", (long) stocks.size());
+		statistics.put("reserved", reserved);
+		statistics.put("pending", pending);
+		statistics.put("shortProducts", shortProducts);
+		statistics.put("shortUnits", shortUnits);
+		return statistics;
+	}
+
+	/**
+	 * @return what is available of the product, or null if it is not limited
+	 */
+	public Long getAvailable(int productId) {
+		Stock stock = stocks.get(productId);
+		return stock == null || !loaded ? null : stock.available.get();
+	}
+
+}
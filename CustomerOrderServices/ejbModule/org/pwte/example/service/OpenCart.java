@@ -0,0 +1,73 @@
+package org.pwte.example.service;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.pwte.example.domain.LineItem;
+import org.pwte.example.domain.Order;
+import org.pwte.example.domain.Product;
+
+/**
+ * The open order of one customer while the {@link CartStore} holds it.
+ * Every field is guarded by the cart's own monitor.
+ */
+public final class OpenCart {
+
+	final int customerId;
+	final String user;
+	/* Detached, never handed to the entity manager; its version is the ETag */
+	final Order order;
+	/* ORDERS.VERSION as last written or read */
+	long flushedVersion;
+	/* Products whose line changed since the last flush, removed ones included */
+	final Set<Integer> changedProducts = new HashSet<Integer>();
+	/* The order was opened by the call that created the cart, so there is no version to check yet */
+	boolean fresh;
+	/* The order's insert is not committed yet, so there is no row to write to */
+	boolean inserting;
+	boolean evicted;
+	volatile long lastUsed = System.currentTimeMillis();
+	/* Held for the whole of a write, so two flushes never write the same cart at once */
+	final Object flushLock = new Object();
+
+	OpenCart(int customerId, String user, Order order) {
+		this.customerId = customerId;
+		this.user = user;
+		this.order = order;
+		this.flushedVersion = order.getVersion();
+	}
+
+	boolean isDirty() {
+		return order.getVersion() != flushedVersion || !changedProducts.isEmpty();
+	}
+
+	/**
+	 * @return a detached copy of the order whose line items carry product
+	 *         summaries, safe to use after the lock is released
+	 */
+	static Order copy(Order order) {
+		Order copy = new Order();
+		copy.setOrderId(order.getOrderId());
+		copy.setStatus(order.getStatus());
+		copy.setTotal(order.getTotal());
+		copy.setVersion(order.getVersion());
+		copy.setSubmittedTime(order.getSubmittedTime());
+		copy.setLineitems(new HashSet<LineItem>());
+		if (order.getLineitems() != null) {
+			for (LineItem lineItem : order.getLineitems()) {
+				LineItem line = new LineItem();
+				line.setOrderId(order.getOrderId());
+				line.setProductId(lineItem.getProductId());
+				line.setQuantity(lineItem.getQuantity());
+				line.setAmount(lineItem.getAmount());
+				Product product = lineItem.getProduct();
+				if (product != null) {
+					line.setProduct(CatalogCache.toProduct(new Object[] { product.getProductId(), product.getName(), product.getPrice(), product.getDescription(), product.getImagePath() }));
+				}
+				copy.addLineItem(line);
+			}
+		}
+		return copy;
+	}
+
+}
@@ -0,0 +1,119 @@
+package org.pwte.example.service;
+
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.pwte.example.domain.OrderHistoryVersion;
+
+/**
+ * The current version of each user's order history, so conditional
+ * history requests can be answered without a query.
+ *
+ * Times are whole seconds, the resolution of HTTP dates, and are never
+ * later than now. A change within the same second as the one before it
+ * keeps that second, so until the next second begins the time does not
+ * tell the two apart; the version says so, and its tag, which moves with
+ * every change, has to be used instead. Once the next second has begun
+ * the time moves to it. Changes made on another server are not seen here,
+ * so a version is trusted for at most {@link #TTL_MILLIS} before it is
+ * read from the database again.
+ *
+ * This is a plain JVM-wide object rather than a singleton bean because it
+ * is updated from transaction completion callbacks, where no bean may be
+ * invoked.
+ */
+public class OrderHistoryVersions {
+
+	static final int MAX_USERS = 10000;
+	static final long TTL_MILLIS = 60000;
+	private static final OrderHistoryVersions INSTANCE = new OrderHistoryVersions();
+
+	public static OrderHistoryVersions getInstance() {
+		return INSTANCE;
+	}
+
+	private static class Version {
+		final long lastModified;
+		final long tag;
+		final boolean distinct;
+		final long expires;
+
+		Version(long lastModified, long tag, boolean distinct, long expires) {
+			this.lastModified = lastModified;
+			this.tag = tag;
+			this.distinct = distinct;
+			this.expires = expires;
+		}
+
+		OrderHistoryVersion toOrderHistoryVersion() {
+			return new OrderHistoryVersion(lastModified == 0 ? null : new Date(lastModified), Long.toString(tag), distinct);
+		}
+	}
+
+	private final Map<String, Version> versions = new ConcurrentHashMap<String, Version>();
+
+	/**
+	 * @return the user's history version, or null if it has to be read from
+	 *         the database
+	 */
+	public OrderHistoryVersion get(String user) {
+		Version version = versions.get(user);
+		long now = System.currentTimeMillis();
+		if (version == null || version.expires < now) return null;
+		if (!version.distinct && version.lastModified + 1000 <= now) version = settle(user, version);
+		return version.toOrderHistoryVersion();
+	}
+
+	private synchronized Version settle(String user, Version version) {
+		if (versions.get(user) != version) return version;
+		Version settled = new Version(version.lastModified + 1000, version.tag, true, version.expires);
+		put(user, settled);
+		return settled;
+	}
+
+	/**
+	 * Records the time read from the database, unless a later change has
+	 * already been seen here.
+	 * @return the version to report
+	 */
+	public synchronized OrderHistoryVersion loaded(String user, long lastModified) {
+		long now = System.currentTimeMillis();
+		Version old = versions.get(user);
+		long seconds = lastModified / 1000 * 1000;
+		Version version;
+		if (old != null && old.lastModified >= seconds) {
+			version = new Version(old.lastModified, old.tag, old.distinct, now + TTL_MILLIS);
+		} else {
+			version = new Version(seconds, Math.max(lastModified, old == null ? 0 : old.tag + 1), true, now + TTL_MILLIS);
+		}
+		put(user, version);
+		return version.toOrderHistoryVersion();
+	}
+
+	/**
+	 * Moves the user's time to the current second and gives the history a
+	 * new tag.
+	 */
+	public synchronized void changed(String user) {
+		long now = System.currentTimeMillis();
+		Version old = versions.get(user);
+		long seconds = now / 1000 * 1000;
+		if (old == null) {
+			put(user, new Version(seconds, now, true, now + TTL_MILLIS));
+		} else {
+			put(user, new Version(Math.max(seconds, old.lastModified), Math.max(now, old.tag + 1), old.lastModified < seconds, now + TTL_MILLIS));
+		}
+	}
+
+	private void put(String user, Version version) {
+		if (versions.put(user, version) == null && versions.size() > MAX_USERS) {
+			Iterator<String> users = versions.keySet().iterator();
+			while (versions.size() > MAX_USERS && users.hasNext()) {
+				if (!users.next().equals(user)) users.remove();
+			}
+		}
+	}
+
+}
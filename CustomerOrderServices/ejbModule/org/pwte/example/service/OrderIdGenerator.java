@@ -0,0 +1,45 @@
+package org.pwte.example.service;
+
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Singleton;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+/**
+ * Hands out order ids, so a new order has its id as soon as it is created
+ * and its insert can wait for the flush at commit together with those of
+ * its line items.
+ *
+ * Ids come in blocks of {@link #BLOCK_SIZE}: one NEXTVAL of the
+ * ORDER_ID_SEQ sequence, which is incremented by the block size, reserves
+ * that value and the ones below the next, so every server draws its own
+ * blocks and no id is handed out twice. Ids left in a block when the
+ * server stops are skipped, and ids from different servers interleave, so
+ * they are unique but neither gapless nor in order of creation.
+ */
+@Singleton
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class OrderIdGenerator {
+
+	/* Must match the INCREMENT BY of ORDER_ID_SEQ */
+	static final int BLOCK_SIZE = 50;
+
+	private static final String NEXT_BLOCK_SQL = "values nextval for order_id_seq";
+
+	@PersistenceContext
+	protected EntityManager em;
+
+	/* The next id to hand out and the first id past the current block; guarded by this */
+	private long next;
+	private long limit;
+
+	public synchronized int next() {
+		if (next >= limit) {
+			next = ((Number) em.createNativeQuery(NEXT_BLOCK_SQL).getSingleResult()).longValue();
+			limit = next + BLOCK_SIZE;
+		}
+		return (int) next++;
+	}
+
+}
@@ -0,0 +1,220 @@
+package org.pwte.example.service;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.pwte.example.domain.Category;
+import org.pwte.example.domain.FacetResult;
+import org.pwte.example.domain.Product;
+
+/**
+ * Immutable bitmap index for faceted catalog navigation.
+ *
+ * Products are numbered densely in id order and every facet value, a
+ * category subtree or a price bucket, is a bitset over those ordinals stored
+ * as raw words. A query is a bitwise AND of the selected facets, and every
+ * facet count is an AND plus popcount against the other filters, so no facet
+ * is ever counted with SQL.
+ */
+public final class ProductFacetIndex {
+
+	static final BigDecimal[] PRICE_BOUNDS = {
+		new BigDecimal(0), new BigDecimal(25), new BigDecimal(50), new BigDecimal(100),
+		new BigDecimal(250), new BigDecimal(500), new BigDecimal(1000)
+	};
+
+	private final long categoryVersion;
+	private final Product[] products;
+	private final Map<Integer, Integer> ordinals;
+	private final int words;
+	private final long[] all;
+	private final Map<Integer, long[]> categoryBits;
+	private final long[][] priceBits;
+
+	/**
+	 * @param tree the category snapshot facets are rolled up through
+	 * @param productList every product, detached
+	 * @param links one <code>{productId, categoryId}</code> row per PROD_CAT entry
+	 */
+	public ProductFacetIndex(CategoryTree tree, List<Product> productList, List<Object[]> links) {
+		this.categoryVersion = tree.getVersion();
+		products = productList.toArray(new Product[productList.size()]);
+		Arrays.sort(products, new Comparator<Product>() {
+			public int compare(Product a, Product b) {
+				return a.getProductId() < b.getProductId() ? -1 : (a.getProductId() == b.getProductId() ? 0 : 1);
+			}
+		});
+		words = (products.length + 63) >>> 6;
+		ordinals = new HashMap<Integer, Integer>(products.length * 2);
+		all = new long[words];
+		priceBits = new long[PRICE_BOUNDS.length][words];
+		for (int ordinal = 0; ordinal < products.length; ordinal++) {
+			ordinals.put(products[ordinal].getProductId(), ordinal);
+			set(all, ordinal);
+			set(priceBits[priceBucket(products[ordinal].getPrice())], ordinal);
+		}
+
+		Map<Integer, long[]> direct = new HashMap<Integer, long[]>();
+		for (Object[] link : links) {
+			Integer ordinal = ordinals.get(((Number) link[0]).intValue());
+			if (ordinal == null) continue;
+			Integer categoryId = ((Number) link[1]).intValue();
+			long[] bits = direct.get(categoryId);
+			if (bits == null) {
+				bits = new long[words];
+				direct.put(categoryId, bits);
+			}
+			set(bits, ordinal);
+		}
+
+		categoryBits = new HashMap<Integer, long[]>();
+		for (Category root : tree.getTopLevelCategories()) {
+			rollUp(root, direct);
+		}
+	}
+
+	private long[] rollUp(Category category, Map<Integer, long[]> direct) {
+		long[] bits = new long[words];
+		long[] own = direct.get(category.getCategoryID());
+		if (own != null) or(bits, own);
+		for (Category child : category.getSubCategories()) {
+			or(bits, rollUp(child, direct));
+		}
+		categoryBits.put(category.getCategoryID(), bits);
+		return bits;
+	}
+
+	public long getCategoryVersion() {
+		return categoryVersion;
+	}
+
+	/**
+	 * @param categoryIds selected categories, a product matches if it is in any of their subtrees; null or empty for all
+	 * @param minPrice inclusive, or null
+	 * @param maxPrice inclusive, or null
+	 * @param keywordMatches ids of the products matching the keyword, or null if there is no keyword
+	 * @param offset
+	 * @param limit
+	 */
+	public FacetResult query(Collection<Integer> categoryIds, BigDecimal minPrice, BigDecimal maxPrice, Collection<Integer> keywordMatches, int offset, int limit) {
+		long[] categoryFilter = null;
+		if (categoryIds != null && !categoryIds.isEmpty()) {
+			categoryFilter = new long[words];
+			for (Integer categoryId : categoryIds) {
+				long[] bits = categoryBits.get(categoryId);
+				if (bits != null) or(categoryFilter, bits);
+			}
+		}
+		long[] priceFilter = (minPrice == null && maxPrice == null) ? null : priceRange(minPrice, maxPrice);
+		long[] keywordFilter = null;
+		if (keywordMatches != null) {
+			keywordFilter = new long[words];
+			for (Integer productId : keywordMatches) {
+				Integer ordinal = ordinals.get(productId);
+				if (ordinal != null) set(keywordFilter, ordinal);
+			}
+		}
+
+		// Each facet is counted against every filter but its own
+		long[] withoutCategory = and(all, priceFilter, keywordFilter);
+		long[] withoutPrice = and(all, categoryFilter, keywordFilter);
+		long[] matches = and(withoutCategory, categoryFilter, null);
+
+		Map<Integer, Integer> categoryCounts = new LinkedHashMap<Integer, Integer>();
+		for (Map.Entry<Integer, long[]> entry : categoryBits.entrySet()) {
+			int count = countAnd(withoutCategory, entry.getValue());
+			if (count > 0) categoryCounts.put(entry.getKey(), count);
+		}
+		List<FacetResult.PriceBucket> priceBuckets = new ArrayList<FacetResult.PriceBucket>(PRICE_BOUNDS.length);
+		for (int bucket = 0; bucket < PRICE_BOUNDS.length; bucket++) {
+			BigDecimal upper = bucket + 1 < PRICE_BOUNDS.length ? PRICE_BOUNDS[bucket + 1] : null;
+			priceBuckets.add(new FacetResult.PriceBucket(PRICE_BOUNDS[bucket], upper, countAnd(withoutPrice, priceBits[bucket])));
+		}
+
+		List<Product> page = new ArrayList<Product>();
+		int total = 0;
+		for (int ordinal = nextSetBit(matches, 0); ordinal >= 0; ordinal = nextSetBit(matches, ordinal + 1)) {
+			if (total >= offset && page.size() < limit) page.add(products[ordinal]);
+			total++;
+		}
+
+		FacetResult result = new FacetResult();
+		result.setProducts(page);
+		result.setTotal(total);
+		result.setCategoryCounts(categoryCounts);
+		result.setPriceBuckets(priceBuckets);
+		return result;
+	}
+
+	/*
+	 * Buckets entirely inside the range are taken whole; only the buckets the
+	 * bounds fall into are checked product by product.
+	 */
+	private long[] priceRange(BigDecimal minPrice, BigDecimal maxPrice) {
+		long[] bits = new long[words];
+		int first = minPrice == null ? 0 : priceBucket(minPrice);
+		int last = maxPrice == null ? PRICE_BOUNDS.length - 1 : priceBucket(maxPrice);
+		for (int bucket = first; bucket <= last; bucket++) {
+			if (bucket != first && bucket != last) {
+				or(bits, priceBits[bucket]);
+				continue;
+			}
+			long[] candidates = priceBits[bucket];
+			for (int ordinal = nextSetBit(candidates, 0); ordinal >= 0; ordinal = nextSetBit(candidates, ordinal + 1)) {
+				BigDecimal price = products[ordinal].getPrice();
+				if ((minPrice == null || price.compareTo(minPrice) >= 0) && (maxPrice == null || price.compareTo(maxPrice) <= 0)) {
+					set(bits, ordinal);
+				}
+			}
+		}
+		return bits;
+	}
+
+	static int priceBucket(BigDecimal price) {
+		int bucket = 0;
+		while (bucket + 1 < PRICE_BOUNDS.length && price.compareTo(PRICE_BOUNDS[bucket + 1]) >= 0) bucket++;
+		return bucket;
+	}
+
+	private static void set(long[] bits, int index) {
+		bits[index >>> 6] |= 1L << index;
+	}
+
+	private static void or(long[] target, long[] bits) {
+		for (int i = 0; i < target.length; i++) target[i] |= bits[i];
+	}
+
+	private static long[] and(long[] base, long[] a, long[] b) {
+		long[] result = base.clone();
+		for (int i = 0; i < result.length; i++) {
+			if (a != null) result[i] &= a[i];
+			if (b != null) result[i] &= b[i];
+		}
+		return result;
+	}
+
+	private static int countAnd(long[] a, long[] b) {
+		int count = 0;
+		for (int i = 0; i < a.length; i++) count += Long.bitCount(a[i] & b[i]);
+		return count;
+	}
+
+	private static int nextSetBit(long[] bits, int from) {
+		int word = from >>> 6;
+		if (word >= bits.length) return -1;
+		long current = bits[word] & (-1L << from);
+		while (true) {
+			if (current != 0) return (word << 6) + Long.numberOfTrailingZeros(current);
+			if (++word >= bits.length) return -1;
+			current = bits[word];
+		}
+	}
+
+}
@@ -1,16 +1,80 @@
 package org.pwte.example.service;
 
+import java.math.BigDecimal;
 import java.util.List;
 
 import org.pwte.example.domain.Category;
+import org.pwte.example.domain.FacetResult;
 import org.pwte.example.domain.Product;
+import org.pwte.example.domain.ProductBatch;
+import org.pwte.example.domain.ProductPage;
+import org.pwte.example.domain.Suggestion;
 import org.pwte.example.exception.CategoryDoesNotExist;
 import org.pwte.example.exception.ProductDoesNotExistException;
 
 public interface ProductSearchService 
 {
 	public Product loadProduct(int productId) throws ProductDoesNotExistException;
+	/**
+	 * @param productIds
+	 * @return the products in request order, each id at most once, and the ids of products that do not exist
+	 */
+	public ProductBatch loadProducts(int[] productIds);
 	public List<Product> loadProductsByCategory(int categoryId);
+	/**
+	 * @param categoryId
+	 * @param sort
+	 * @param descending
+	 * @param offset position of the first product of the page in the sorted listing
+	 * @param limit maximum number of products on the page
+	 * @return the page, with the total number of products in the category subtree
+	 */
+	public ProductPage loadProductsByCategory(int categoryId, ProductPage.Sort sort, boolean descending, int offset, int limit);
+	/**
+	 * Ranked full-text search over product names and descriptions, served
+	 * from memory.
+	 * @param query
+	 * @param limit maximum number of products returned
+	 * @return the best matching products, best first
+	 */
+	public List<Product> searchProducts(String query, int limit);
+	/**
+	 * Faceted navigation over the whole catalog, answered from in-memory
+	 * bitmaps.
+	 * @param categoryIds a product matches if it is in the subtree of any of them; empty for all categories
+	 * @param minPrice inclusive lower bound, or null
+	 * @param maxPrice inclusive upper bound, or null
+	 * @param keyword free text every term of which must match, or null
+	 * @param offset
+	 * @param limit
+	 * @return the page of matching products in id order, with per-category and per-price-bucket counts
+	 */
+	public FacetResult loadProductFacets(List<Integer> categoryIds, BigDecimal minPrice, BigDecimal maxPrice, String keyword, int offset, int limit);
+	/**
+	 * Typeahead completions over product and category names, most popular
+	 * first, served from memory.
+	 * @param prefix
+	 * @param limit
+	 */
+	public List<Suggestion> suggest(String prefix, int limit);
 	public Category loadCategory(int categoryId) throws CategoryDoesNotExist;
 	public java.util.List<Category> getTopLevelCategories();
+	/**
+	 * @return the version of the catalog data served, which changes whenever it is reloaded
+	 */
+	public long getCatalogVersion();
+	/**
+	 * @return the version of one product, which changes whenever that product is reloaded
+	 */
+	public long getProductVersion(int productId);
+	/**
+	 * @return the version of the typeahead index, which changes whenever a
+	 *         rebuilt index is swapped in; that can be a while after the
+	 *         catalog version changed
+	 */
+	public long getSuggestVersion();
+	/**
+	 * @return the current immutable snapshot of the category hierarchy
+	 */
+	public CategoryTree getCategoryTree();
 }
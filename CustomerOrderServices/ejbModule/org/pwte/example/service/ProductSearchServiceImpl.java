@@ -1,15 +1,26 @@
 package org.pwte.example.service;
 
 
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+import javax.ejb.EJB;
 import javax.ejb.Stateless;
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
 import javax.persistence.Query;
 
 import org.pwte.example.domain.Category;
+import org.pwte.example.domain.FacetResult;
 import org.pwte.example.domain.Product;
+import org.pwte.example.domain.ProductBatch;
+import org.pwte.example.domain.ProductPage;
+import org.pwte.example.domain.Suggestion;
 import org.pwte.example.exception.CategoryDoesNotExist;
 import org.pwte.example.exception.ProductDoesNotExistException;
 
@@ -19,8 +30,11 @@ public class ProductSearchServiceImpl implements ProductSearchService {
 	@PersistenceContext
 	protected EntityManager em;
 	
+	@EJB
+	protected CatalogCache catalogCache;
+	
 	public Category loadCategory(int categoryId)throws CategoryDoesNotExist {
-		Category category = em.find(Category.class, categoryId);
+		Category category = catalogCache.getCategoryTree().getCategory(categoryId);
 		if(category == null) throw new CategoryDoesNotExist();
 		return category;
 	}
@@ -33,21 +47,229 @@ public class ProductSearchServiceImpl implements ProductSearchService {
 		return product;
 	}
 	
+	private static final int BATCH_CHUNK_SIZE = 128;
+	
+	/**
+	 * Reads every requested product with one IN query per
+	 * {@link #BATCH_CHUNK_SIZE} distinct ids. Only the summary columns are
+	 * selected, so the categories of the products are not loaded.
+	 */
+	@SuppressWarnings("unchecked")
+	public ProductBatch loadProducts(int[] productIds) {
+		LinkedHashSet<Integer> requested = new LinkedHashSet<Integer>();
+		for(int productId:productIds) requested.add(productId);
+		List<Integer> ids = new ArrayList<Integer>(requested);
+		
+		Map<Integer, Product> found = new HashMap<Integer, Product>(ids.size() * 2);
+		for(int from = 0; from < ids.size(); from += BATCH_CHUNK_SIZE)
+		{
+			List<Integer> chunk = ids.subList(from, Math.min(from + BATCH_CHUNK_SIZE, ids.size()));
+			Query query = em.createNativeQuery(PRODUCT_SELECT + " where p.product_id in (" + parameterList(chunk.size()) + ")");
+			bindIds(query, chunk, 1);
+			for(Object[] row:(List<Object[]>)query.getResultList())
+			{
+				Product product = CatalogCache.toProduct(row);
+				found.put(product.getProductId(), product);
+			}
+		}
+		
+		List<Product> products = new ArrayList<Product>(found.size());
+		List<Integer> missingIds = new ArrayList<Integer>();
+		for(Integer productId:ids)
+		{
+			Product product = found.get(productId);
+			if(product == null) missingIds.add(productId);
+			else products.add(product);
+		}
+		return new ProductBatch(products, missingIds);
+	}
+	
 	
+	/**
+	 * Loads the products of a category and of all its sub-categories at any
+	 * depth. The subtree is resolved from the in-memory category closure, so
+	 * the database only sees one indexed PROD_CAT lookup per call.
+	 * 
+	 * Listings select the summary columns rather than Product entities: an
+	 * entity would pull in its EAGER categories, and with them their parents
+	 * and sub-categories, only for the serializer to ignore them.
+	 */
 	@SuppressWarnings("unchecked")
 	public List<Product> loadProductsByCategory(int categoryId) {
-		Query query = em.createNamedQuery("product.by.cat.or.sub");
-		query.setParameter(1, categoryId);
-		query.setParameter(2, categoryId);
-		return query.getResultList();
+		List<Integer> categoryIds = catalogCache.getCategoryTree().getSubtreeIds(categoryId);
+		if(categoryIds.isEmpty()) return new ArrayList<Product>();
+		Query query = em.createNativeQuery(PRODUCT_SELECT + " where " + inCategoriesSql(categoryIds.size()));
+		bindIds(query, categoryIds, 1);
+		return toProducts(query.getResultList());
+	}
+	
+	/**
+	 * Pages are read with keyset pagination: the sort key of the last row of
+	 * each page served is remembered, and a request for the page that follows
+	 * it seeks past that key instead of skipping rows. Only a jump to an
+	 * offset no page has ended at yet falls back to skipping. The keys are
+	 * only valid for the catalog version they were taken at, since a changed
+	 * name or price moves a product within the sort order.
+	 */
+	@SuppressWarnings("unchecked")
+	public ProductPage loadProductsByCategory(int categoryId, ProductPage.Sort sort, boolean descending, int offset, int limit) {
+		long catalogVersion = catalogCache.getCatalogVersion();
+		CategoryTree tree = catalogCache.getCategoryTree();
+		List<Integer> categoryIds = tree.getSubtreeIds(categoryId);
+		if(categoryIds.isEmpty()) return new ProductPage(new ArrayList<Product>(), offset, 0);
+		
+		String inCategories = inCategoriesSql(categoryIds.size());
+		Query count = em.createNativeQuery("select count(*) from product as p where " + inCategories);
+		bindIds(count, categoryIds, 1);
+		int total = ((Number)count.getSingleResult()).intValue();
+		if(limit <= 0 || offset >= total) return new ProductPage(new ArrayList<Product>(), offset, total);
+		
+		String cursorKey = catalogVersion + "/" + categoryId + "/" + sort + "/" + descending + "/";
+		Object[] cursor = offset == 0 ? null : catalogCache.getPageCursor(cursorKey + offset);
+		
+		StringBuilder sql = new StringBuilder(PRODUCT_SELECT).append(" where ").append(inCategories);
+		if(cursor != null) sql.append(" and ").append(keysetSql(sort, descending));
+		sql.append(" order by ").append(orderBySql(sort, descending));
+		Query query = em.createNativeQuery(sql.toString());
+		int position = bindIds(query, categoryIds, 1);
+		if(cursor != null)
+		{
+			if(sort != ProductPage.Sort.ID)
+			{
+				query.setParameter(position++, cursor[0]);
+				query.setParameter(position++, cursor[0]);
+			}
+			query.setParameter(position, cursor[1]);
+		}
+		else
+		{
+			query.setFirstResult(offset);
+		}
+		query.setMaxResults(limit);
+		List<Product> products = toProducts(query.getResultList());
+		
+		if(!products.isEmpty())
+		{
+			Product last = products.get(products.size() - 1);
+			catalogCache.putPageCursor(cursorKey + (offset + products.size()), new Object[]{sortValue(sort, last), last.getProductId()});
+		}
+		return new ProductPage(products, offset, total);
+	}
+	
+	private static final String PRODUCT_SELECT = "select p.product_id,p.name,p.price,p.description,p.image from product as p";
+	
+	private static List<Product> toProducts(List<Object[]> rows) {
+		List<Product> products = new ArrayList<Product>(rows.size());
+		for(Object[] row:rows)
+		{
+			products.add(CatalogCache.toProduct(row));
+		}
+		return products;
+	}
+	
+	/*
+	 * The IN list is padded up to a power of two so the number of distinct
+	 * statements, and therefore prepared statement cache entries, stays
+	 * logarithmic in the size of the deepest subtree.
+	 */
+	static int parameterSlots(int count) {
+		int slots = 1;
+		while(slots < count) slots <<= 1;
+		return slots;
+	}
+	
+	private static String parameterList(int count) {
+		StringBuilder sql = new StringBuilder();
+		int slots = parameterSlots(count);
+		for(int i = 1; i <= slots; i++)
+		{
+			if(i > 1) sql.append(',');
+			sql.append('?');
+		}
+		return sql.toString();
+	}
+	
+	private static String inCategoriesSql(int count) {
+		return "p.product_id in (select pc.product_id from prod_cat as pc where pc.cat_id in (" + parameterList(count) + "))";
+	}
+	
+	/**
+	 * @return the next free parameter position
+	 */
+	private static int bindIds(Query query, List<Integer> ids, int position) {
+		int slots = parameterSlots(ids.size());
+		for(int i = 0; i < slots; i++)
+		{
+			query.setParameter(position++, ids.get(Math.min(i, ids.size() - 1)));
+		}
+		return position;
+	}
+	
+	private static String sortColumn(ProductPage.Sort sort) {
+		switch(sort)
+		{
+			case NAME: return "p.name";
+			case PRICE: return "p.price";
+			default: return "p.product_id";
+		}
+	}
+	
+	private static Object sortValue(ProductPage.Sort sort, Product product) {
+		switch(sort)
+		{
+			case NAME: return product.getName();
+			case PRICE: return product.getPrice();
+			default: return product.getProductId();
+		}
+	}
+	
+	private static String keysetSql(ProductPage.Sort sort, boolean descending) {
+		String op = descending ? " < ?" : " > ?";
+		if(sort == ProductPage.Sort.ID) return "p.product_id" + op;
+		String column = sortColumn(sort);
+		return "(" + column + op + " or (" + column + " = ? and p.product_id" + op + "))";
+	}
+	
+	private static String orderBySql(ProductPage.Sort sort, boolean descending) {
+		String direction = descending ? " desc" : " asc";
+		if(sort == ProductPage.Sort.ID) return "p.product_id" + direction;
+		return sortColumn(sort) + direction + ", p.product_id" + direction;
 	}
 
 
 
-	@SuppressWarnings("unchecked")
+	public List<Product> searchProducts(String query, int limit) {
+		return catalogCache.getProductTextIndex().search(query, limit);
+	}
+	
+	public List<Suggestion> suggest(String prefix, int limit) {
+		return catalogCache.getProductSuggestIndex().suggest(prefix, limit);
+	}
+	
+	public FacetResult loadProductFacets(List<Integer> categoryIds, BigDecimal minPrice, BigDecimal maxPrice, String keyword, int offset, int limit) {
+		Set<Integer> keywordMatches = null;
+		if(keyword != null && keyword.trim().length() > 0) keywordMatches = catalogCache.getProductTextIndex().matchAll(keyword);
+		return catalogCache.getProductFacetIndex().query(categoryIds, minPrice, maxPrice, keywordMatches, offset, limit);
+	}
+	
 	public List<Category> getTopLevelCategories() {
-		Query query = em.createNamedQuery("top.level.category");
-		return query.getResultList();
+		return catalogCache.getCategoryTree().getTopLevelCategories();
+	}
+	
+	public CategoryTree getCategoryTree() {
+		return catalogCache.getCategoryTree();
+	}
+	
+	public long getCatalogVersion() {
+		return catalogCache.getCatalogVersion();
+	}
+	
+	public long getProductVersion(int productId) {
+		return catalogCache.getProductVersion(productId);
+	}
+	
+	public long getSuggestVersion() {
+		return catalogCache.getSuggestVersion();
 	}
 
 	
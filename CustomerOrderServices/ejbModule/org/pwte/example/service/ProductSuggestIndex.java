@@ -0,0 +1,199 @@
+package org.pwte.example.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.pwte.example.domain.Category;
+import org.pwte.example.domain.Product;
+import org.pwte.example.domain.Suggestion;
+
+/**
+ * Immutable typeahead index over product and category names.
+ *
+ * Every name is normalized to its lower-case words, and the name is indexed
+ * from each word on, so "Return of the Jedi" completes both "ret" and "jed".
+ * Suggestions are numbered by descending popularity, and every trie node
+ * stores the numbers of the {@link #MAX_SUGGESTIONS} most popular
+ * suggestions below it. A lookup is one walk down the prefix with no
+ * ranking work at all. The trie is held in flat arrays rather than node
+ * objects.
+ */
+public final class ProductSuggestIndex {
+
+	public static final int MAX_SUGGESTIONS = 10;
+
+	private final Suggestion[] suggestions;
+
+	/* Node n has children childIndex[childStart[n] .. childStart[n + 1]) labelled childLabel[..] */
+	private final int[] childStart;
+	private final char[] childLabel;
+	private final int[] childIndex;
+	/* and its best suggestions are top[topStart[n] .. topStart[n + 1]) */
+	private final int[] topStart;
+	private final int[] top;
+
+	private static class Candidate {
+		final Suggestion suggestion;
+		final long weight;
+
+		Candidate(Suggestion suggestion, long weight) {
+			this.suggestion = suggestion;
+			this.weight = weight;
+		}
+	}
+
+	private static class BuildNode {
+		final TreeMap<Character, BuildNode> children = new TreeMap<Character, BuildNode>();
+		final int[] top = new int[MAX_SUGGESTIONS];
+		int topCount;
+
+		void offer(int rank) {
+			// Ranks arrive in ascending order, so the first ones offered are the best
+			if (topCount < MAX_SUGGESTIONS && (topCount == 0 || top[topCount - 1] != rank)) top[topCount++] = rank;
+		}
+	}
+
+	/**
+	 * @param tree the category snapshot
+	 * @param products every product, detached
+	 * @param links one <code>{productId, categoryId}</code> row per PROD_CAT entry
+	 * @param popularity one <code>{productId, quantity}</code> row per ordered product
+	 */
+	public ProductSuggestIndex(CategoryTree tree, List<Product> products, List<Object[]> links, List<Object[]> popularity) {
+		Map<Integer, Long> productWeights = new HashMap<Integer, Long>();
+		for (Object[] row : popularity) {
+			productWeights.put(((Number) row[0]).intValue(), ((Number) row[1]).longValue());
+		}
+
+		// A category is as popular as the products filed directly under it, plus its sub-categories
+		Map<Integer, Long> categoryWeights = new HashMap<Integer, Long>();
+		for (Object[] link : links) {
+			Long weight = productWeights.get(((Number) link[0]).intValue());
+			Integer categoryId = ((Number) link[1]).intValue();
+			Long total = categoryWeights.get(categoryId);
+			categoryWeights.put(categoryId, (total == null ? 0 : total) + 1 + (weight == null ? 0 : weight));
+		}
+
+		List<Candidate> candidates = new ArrayList<Candidate>();
+		for (Product product : products) {
+			Long weight = productWeights.get(product.getProductId());
+			candidates.add(new Candidate(new Suggestion(product.getName(), Suggestion.Type.PRODUCT, product.getProductId()), 1 + (weight == null ? 0 : weight)));
+		}
+		for (Category root : tree.getTopLevelCategories()) {
+			addCategory(root, categoryWeights, candidates);
+		}
+		Collections.sort(candidates, new Comparator<Candidate>() {
+			public int compare(Candidate a, Candidate b) {
+				if (a.weight != b.weight) return a.weight > b.weight ? -1 : 1;
+				return a.suggestion.getText().compareToIgnoreCase(b.suggestion.getText());
+			}
+		});
+
+		suggestions = new Suggestion[candidates.size()];
+		BuildNode root = new BuildNode();
+		int nodeCount = 1;
+		for (int rank = 0; rank < suggestions.length; rank++) {
+			suggestions[rank] = candidates.get(rank).suggestion;
+			List<String> words = ProductTextIndex.tokenize(suggestions[rank].getText());
+			for (int first = 0; first < words.size(); first++) {
+				BuildNode node = root;
+				node.offer(rank);
+				String key = join(words.subList(first, words.size()));
+				for (int i = 0; i < key.length(); i++) {
+					BuildNode child = node.children.get(key.charAt(i));
+					if (child == null) {
+						child = new BuildNode();
+						node.children.put(key.charAt(i), child);
+						nodeCount++;
+					}
+					node = child;
+					node.offer(rank);
+				}
+			}
+		}
+
+		// Flatten breadth first, so every node's children are numbered consecutively
+		childStart = new int[nodeCount + 1];
+		childLabel = new char[nodeCount - 1];
+		childIndex = new int[nodeCount - 1];
+		topStart = new int[nodeCount + 1];
+		List<BuildNode> queue = new ArrayList<BuildNode>(nodeCount);
+		queue.add(root);
+		int edges = 0;
+		int tops = 0;
+		for (int n = 0; n < queue.size(); n++) {
+			BuildNode node = queue.get(n);
+			childStart[n] = edges;
+			topStart[n] = tops;
+			tops += node.topCount;
+			for (Map.Entry<Character, BuildNode> child : node.children.entrySet()) {
+				childLabel[edges] = child.getKey();
+				childIndex[edges++] = queue.size();
+				queue.add(child.getValue());
+			}
+		}
+		childStart[nodeCount] = edges;
+		topStart[nodeCount] = tops;
+		top = new int[tops];
+		for (int n = 0; n < nodeCount; n++) {
+			BuildNode node = queue.get(n);
+			System.arraycopy(node.top, 0, top, topStart[n], node.topCount);
+		}
+	}
+
+	private static void addCategory(Category category, Map<Integer, Long> categoryWeights, List<Candidate> candidates) {
+		Long weight = categoryWeights.get(category.getCategoryID());
+		long total = 1 + (weight == null ? 0 : weight);
+		int start = candidates.size();
+		candidates.add(null);
+		for (Category child : category.getSubCategories()) {
+			int before = candidates.size();
+			addCategory(child, categoryWeights, candidates);
+			total += candidates.get(before).weight;
+		}
+		candidates.set(start, new Candidate(new Suggestion(category.getName(), Suggestion.Type.CATEGORY, category.getCategoryID()), total));
+	}
+
+	private static String join(List<String> words) {
+		StringBuilder key = new StringBuilder();
+		for (String word : words) {
+			if (key.length() > 0) key.append(' ');
+			key.append(word);
+		}
+		return key.toString();
+	}
+
+	/**
+	 * @param prefix what has been typed so far
+	 * @param limit at most {@link #MAX_SUGGESTIONS}
+	 * @return the most popular names with a word sequence starting with the prefix, most popular first
+	 */
+	public List<Suggestion> suggest(String prefix, int limit) {
+		List<Suggestion> result = new ArrayList<Suggestion>();
+		String key = join(ProductTextIndex.tokenize(prefix));
+		if (key.length() == 0 || limit <= 0) return result;
+		int node = 0;
+		for (int i = 0; i < key.length(); i++) {
+			int from = childStart[node];
+			int found = Arrays.binarySearch(childLabel, from, childStart[node + 1], key.charAt(i));
+			if (found < 0) return result;
+			node = childIndex[found];
+		}
+		int end = Math.min(topStart[node + 1], topStart[node] + limit);
+		for (int i = topStart[node]; i < end; i++) {
+			result.add(suggestions[top[i]]);
+		}
+		return result;
+	}
+
+	public int size() {
+		return suggestions.length;
+	}
+
+}
@@ -0,0 +1,238 @@
+package org.pwte.example.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.pwte.example.domain.Product;
+
+/**
+ * In-memory inverted index over product name and description, ranked with
+ * BM25.
+ *
+ * Each product is indexed as one document in which name terms count
+ * {@link #NAME_WEIGHT} times, so a match in the name outranks the same match
+ * in the description. The index is updated in place one product at a time;
+ * searches take a shared lock and updates an exclusive one.
+ */
+public class ProductTextIndex {
+
+	static final float K1 = 1.2f;
+	static final float B = 0.75f;
+	static final int NAME_WEIGHT = 3;
+
+	private static class Document {
+		final Product product;
+		final Map<String, Integer> termFrequencies;
+		final int length;
+
+		Document(Product product, Map<String, Integer> termFrequencies, int length) {
+			this.product = product;
+			this.termFrequencies = termFrequencies;
+			this.length = length;
+		}
+	}
+
+	private static class Hit implements Comparable<Hit> {
+		final int productId;
+		final float score;
+
+		Hit(int productId, float score) {
+			this.productId = productId;
+			this.score = score;
+		}
+
+		/* Worst hit first, so a bounded min-heap keeps the best ones */
+		public int compareTo(Hit other) {
+			if (score != other.score) return score < other.score ? -1 : 1;
+			return other.productId - productId;
+		}
+	}
+
+	private final Map<String, Map<Integer, Integer>> postings = new HashMap<String, Map<Integer, Integer>>();
+	private final Map<Integer, Document> documents = new HashMap<Integer, Document>();
+	private long totalLength;
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * Splits text into lower-case runs of letters and digits.
+	 */
+	public static List<String> tokenize(String text) {
+		List<String> tokens = new ArrayList<String>();
+		if (text == null) return tokens;
+		String lower = text.toLowerCase(Locale.ENGLISH);
+		int start = -1;
+		for (int i = 0; i <= lower.length(); i++) {
+			boolean word = i < lower.length() && Character.isLetterOrDigit(lower.charAt(i));
+			if (word && start < 0) {
+				start = i;
+			} else if (!word && start >= 0) {
+				tokens.add(lower.substring(start, i));
+				start = -1;
+			}
+		}
+		return tokens;
+	}
+
+	/**
+	 * Adds the product, replacing any earlier version of it.
+	 *
+	 * @param product a detached product; it is kept and returned by searches
+	 */
+	public void put(Product product) {
+		Map<String, Integer> frequencies = new HashMap<String, Integer>();
+		int length = 0;
+		for (String token : tokenize(product.getName())) {
+			increment(frequencies, token, NAME_WEIGHT);
+			length += NAME_WEIGHT;
+		}
+		for (String token : tokenize(product.getDescription())) {
+			increment(frequencies, token, 1);
+			length++;
+		}
+		Document document = new Document(product, frequencies, length);
+
+		lock.writeLock().lock();
+		try {
+			removeDocument(product.getProductId());
+			documents.put(product.getProductId(), document);
+			totalLength += length;
+			for (Map.Entry<String, Integer> entry : frequencies.entrySet()) {
+				Map<Integer, Integer> posting = postings.get(entry.getKey());
+				if (posting == null) {
+					posting = new HashMap<Integer, Integer>();
+					postings.put(entry.getKey(), posting);
+				}
+				posting.put(product.getProductId(), entry.getValue());
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public void remove(int productId) {
+		lock.writeLock().lock();
+		try {
+			removeDocument(productId);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void removeDocument(int productId) {
+		Document old = documents.remove(productId);
+		if (old == null) return;
+		totalLength -= old.length;
+		for (String term : old.termFrequencies.keySet()) {
+			Map<Integer, Integer> posting = postings.get(term);
+			posting.remove(productId);
+			if (posting.isEmpty()) postings.remove(term);
+		}
+	}
+
+	private static void increment(Map<String, Integer> frequencies, String token, int weight) {
+		Integer count = frequencies.get(token);
+		frequencies.put(token, count == null ? weight : count + weight);
+	}
+
+	/**
+	 * @param query free text; a product matches if it contains any query term
+	 * @param limit maximum number of products returned
+	 * @return the best matching products, best first
+	 */
+	public List<Product> search(String query, int limit) {
+		Set<String> terms = new LinkedHashSet<String>(tokenize(query));
+		if (terms.isEmpty() || limit <= 0) return new ArrayList<Product>();
+
+		lock.readLock().lock();
+		try {
+			int documentCount = documents.size();
+			if (documentCount == 0) return new ArrayList<Product>();
+			float averageLength = (float) totalLength / documentCount;
+
+			Map<Integer, Float> scores = new HashMap<Integer, Float>();
+			for (String term : terms) {
+				Map<Integer, Integer> posting = postings.get(term);
+				if (posting == null) continue;
+				float idf = (float) Math.log(1 + (documentCount - posting.size() + 0.5) / (posting.size() + 0.5));
+				for (Map.Entry<Integer, Integer> entry : posting.entrySet()) {
+					float tf = entry.getValue();
+					float norm = K1 * (1 - B + B * documents.get(entry.getKey()).length / averageLength);
+					float score = idf * tf * (K1 + 1) / (tf + norm);
+					Float previous = scores.get(entry.getKey());
+					scores.put(entry.getKey(), previous == null ? score : previous + score);
+				}
+			}
+
+			PriorityQueue<Hit> top = new PriorityQueue<Hit>(Math.min(limit, scores.size()) + 1);
+			for (Map.Entry<Integer, Float> entry : scores.entrySet()) {
+				Hit hit = new Hit(entry.getKey(), entry.getValue());
+				if (top.size() < limit) {
+					top.add(hit);
+				} else if (hit.compareTo(top.peek()) > 0) {
+					top.poll();
+					top.add(hit);
+				}
+			}
+			List<Product> products = new ArrayList<Product>(top.size());
+			while (!top.isEmpty()) {
+				products.add(documents.get(top.poll().productId).product);
+			}
+			Collections.reverse(products);
+			return products;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param query free text
+	 * @return ids of the products that contain every query term, empty if the query has no terms
+	 */
+	public Set<Integer> matchAll(String query) {
+		Set<String> terms = new LinkedHashSet<String>(tokenize(query));
+		Set<Integer> matches = new HashSet<Integer>();
+		if (terms.isEmpty()) return matches;
+
+		lock.readLock().lock();
+		try {
+			List<Map<Integer, Integer>> lists = new ArrayList<Map<Integer, Integer>>(terms.size());
+			Map<Integer, Integer> smallest = null;
+			for (String term : terms) {
+				Map<Integer, Integer> posting = postings.get(term);
+				if (posting == null) return matches;
+				lists.add(posting);
+				if (smallest == null || posting.size() < smallest.size()) smallest = posting;
+			}
+			candidates:
+			for (Integer productId : smallest.keySet()) {
+				for (Map<Integer, Integer> posting : lists) {
+					if (!posting.containsKey(productId)) continue candidates;
+				}
+				matches.add(productId);
+			}
+			return matches;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return documents.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+}
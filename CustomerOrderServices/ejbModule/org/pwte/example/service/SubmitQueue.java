@@ -0,0 +1,300 @@
+package org.pwte.example.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.EJB;
+import javax.ejb.SessionContext;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.ejb.Timeout;
+import javax.ejb.Timer;
+import javax.ejb.TimerConfig;
+import javax.ejb.TimerService;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.Query;
+import javax.persistence.TemporalType;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import org.pwte.example.domain.OrderSubmission;
+import org.pwte.example.exception.SubmitQueueFullException;
+
+/**
+ * Queue of orders waiting to be submitted, used when the asyncSubmit
+ * environment entry is set.
+ *
+ * A submit request only validates the order and queues it, so it holds no
+ * connection while the order is written. The order joins the queue only
+ * once the request's transaction commits, so a worker never sees an order
+ * whose submit request may still roll back. submitWorkers timers drain the
+ * queue every submitPollMillis, submitting up to submitBatchSize orders in
+ * one transaction, so a burst of checkouts shares a few connections and
+ * commits. If a batch fails, its orders are retried one per transaction so
+ * one bad order cannot fail the others. Once submitQueueCapacity orders
+ * are waiting, further submits are refused.
+ *
+ * An order is only submitted if it still has the version it was queued
+ * with, so a change made while it waits fails the submission and leaves
+ * the order open. The queue lives in memory: orders still waiting when the
+ * server stops stay open and have to be submitted again.
+ */
+@Singleton
+@Startup
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class SubmitQueue {
+
+	static final long RETAIN_MILLIS = 10 * 60 * 1000;
+
+	private static final String SUBMIT_ORDER_SQL = "update orders set status = 'SUBMITTED', submit_time = ?, version = version + 1 where order_id = ? and version = ? and status = 'OPEN'";
+	private static final String CLOSE_ORDER_SQL = "update customer set open_order = null where customer_id = ? and open_order = ?";
+
+	@PersistenceContext
+	protected EntityManager em;
+
+	@Resource
+	protected SessionContext context;
+
+	@Resource
+	protected TimerService timerService;
+
+	@Resource
+	protected TransactionSynchronizationRegistry transactions;
+
+	@EJB
+	protected InventoryReservations inventory;
+
+	@Resource(name="asyncSubmit")
+	protected boolean enabled = false;
+
+	/* Turns queuing on for the whole JVM without redeploying, for tests; the queue is then only drained by calls to drain() */
+	static final String ASYNC_SUBMIT_PROPERTY = "org.pwte.example.asyncSubmit";
+
+	@Resource(name="submitQueueCapacity")
+	protected int capacity = 1000;
+
+	@Resource(name="submitBatchSize")
+	protected int batchSize = 50;
+
+	@Resource(name="submitWorkers")
+	protected int workers = 2;
+
+	@Resource(name="submitPollMillis")
+	protected long pollMillis = 200;
+
+	/* One submission in the queue; its state changes only after the transaction that decides it commits */
+	public static final class Submission {
+		final int orderId;
+		final int customerId;
+		final String user;
+		final long version;
+		final Date queued = new Date();
+		volatile OrderSubmission.State state = OrderSubmission.State.QUEUED;
+		volatile Date submitted;
+		volatile String reason;
+		volatile long finished;
+
+		Submission(int orderId, int customerId, String user, long version) {
+			this.orderId = orderId;
+			this.customerId = customerId;
+			this.user = user;
+			this.version = version;
+		}
+
+		void finish(OrderSubmission.State state, Date submitted, String reason) {
+			this.submitted = submitted;
+			this.reason = reason;
+			this.finished = System.currentTimeMillis();
+			this.state = state;
+		}
+
+		OrderSubmission toSubmission() {
+			return new OrderSubmission(orderId, state, queued, submitted, reason);
+		}
+	}
+
+	private final BlockingQueue<Submission> queue = new LinkedBlockingQueue<Submission>();
+	/* Space for submissions queued or waiting for their transaction to commit */
+	private Semaphore slots;
+	/* Queued submissions and, for RETAIN_MILLIS, finished ones; writes are guarded by the map's monitor */
+	private final Map<Integer, Submission> submissions = new ConcurrentHashMap<Integer, Submission>();
+	private final OrderHistoryVersions historyVersions = OrderHistoryVersions.getInstance();
+
+	@PostConstruct
+	void start() {
+		slots = new Semaphore(Math.max(1, capacity));
+		if (!enabled) return;
+		for (int i = 0; i < workers; i++) {
+			// Staggered so the workers poll in turn
+			timerService.createIntervalTimer(pollMillis + i * pollMillis / workers, pollMillis, new TimerConfig("order submission", false));
+		}
+	}
+
+	public boolean isEnabled() {
+		return enabled || Boolean.getBoolean(ASYNC_SUBMIT_PROPERTY);
+	}
+
+	/**
+	 * Queues the order when the caller's transaction commits, unless it is
+	 * queued already. The queue space is taken now, so a full queue fails
+	 * the submit, and is given back if the transaction rolls back.
+	 * @param version the order's version, which it must still have when submitted
+	 * @return the order's submission
+	 * @throws SubmitQueueFullException if the queue is full
+	 */
+	public OrderSubmission offer(int orderId, int customerId, String user, long version) throws SubmitQueueFullException {
+		Submission held = submissions.get(orderId);
+		if (held != null && held.state == OrderSubmission.State.QUEUED) return held.toSubmission();
+		if (!slots.tryAcquire()) throw new SubmitQueueFullException();
+		final Submission submission = new Submission(orderId, customerId, user, version);
+		transactions.registerInterposedSynchronization(new Synchronization() {
+			public void beforeCompletion() {
+			}
+
+			public void afterCompletion(int status) {
+				if (status != Status.STATUS_COMMITTED) {
+					slots.release();
+					return;
+				}
+				synchronized (submissions) {
+					Submission held = submissions.get(submission.orderId);
+					if (held != null && held.state == OrderSubmission.State.QUEUED) {
+						slots.release();
+						return;
+					}
+					submissions.put(submission.orderId, submission);
+					queue.add(submission);
+				}
+			}
+		});
+		return submission.toSubmission();
+	}
+
+	public boolean isQueued(int orderId) {
+		Submission submission = submissions.get(orderId);
+		return submission != null && submission.state == OrderSubmission.State.QUEUED;
+	}
+
+	/**
+	 * @return the submission of the user's order if it was queued recently,
+	 *         otherwise null
+	 */
+	public OrderSubmission getSubmission(int orderId, String user) {
+		Submission submission = submissions.get(orderId);
+		if (submission == null || !submission.user.equals(user)) return null;
+		return submission.toSubmission();
+	}
+
+	public int size() {
+		return queue.size();
+	}
+
+	@Timeout
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+	void drain(Timer timer) {
+		drain();
+	}
+
+	/**
+	 * Submits the orders waiting in the queue now, in batches, as a worker
+	 * does on its timer.
+	 * @return the number of orders taken from the queue
+	 */
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+	public int drain() {
+		SubmitQueue self = context.getBusinessObject(SubmitQueue.class);
+		List<Submission> batch = new ArrayList<Submission>(batchSize);
+		int total = 0;
+		int drained;
+		while ((drained = queue.drainTo(batch, batchSize)) > 0) {
+			slots.release(drained);
+			total += drained;
+			try {
+				self.submitBatch(batch);
+			} catch (RuntimeException e) {
+				e.printStackTrace(System.out);
+				for (Submission submission : batch) {
+					try {
+						self.submitBatch(Collections.singletonList(submission));
+					} catch (RuntimeException failure) {
+						submission.finish(OrderSubmission.State.FAILED, null, String.valueOf(failure));
+					}
+				}
+			}
+			batch.clear();
+		}
+		expire();
+		return total;
+	}
+
+	/**
+	 * Submits the orders in one transaction. An order that is no longer
+	 * open, or was changed since it was queued, fails without affecting the
+	 * others.
+	 */
+	@TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+	public void submitBatch(List<Submission> batch) {
+		final Date now = new Date();
+		final List<Submission> submitted = new ArrayList<Submission>(batch.size());
+		final List<Submission> modified = new ArrayList<Submission>();
+		for (Submission submission : batch) {
+			Query order = em.createNativeQuery(SUBMIT_ORDER_SQL);
+			order.setParameter(1, now, TemporalType.TIMESTAMP);
+			order.setParameter(2, submission.orderId);
+			order.setParameter(3, submission.version);
+			if (order.executeUpdate() == 0) {
+				modified.add(submission);
+				continue;
+			}
+			Query customer = em.createNativeQuery(CLOSE_ORDER_SQL);
+			customer.setParameter(1, submission.customerId);
+			customer.setParameter(2, submission.orderId);
+			customer.executeUpdate();
+			inventory.commitOnCompletion(submission.customerId);
+			submitted.add(submission);
+		}
+		transactions.registerInterposedSynchronization(new Synchronization() {
+			public void beforeCompletion() {
+			}
+
+			public void afterCompletion(int status) {
+				if (status != Status.STATUS_COMMITTED) return;
+				for (Submission submission : submitted) {
+					submission.finish(OrderSubmission.State.SUBMITTED, now, null);
+					historyVersions.changed(submission.user);
+				}
+				for (Submission submission : modified) {
+					submission.finish(OrderSubmission.State.FAILED, null, "The order was changed or is no longer open");
+				}
+			}
+		});
+	}
+
+	/* Drops finished submissions after RETAIN_MILLIS; their state can be read from the order */
+	private void expire() {
+		long before = System.currentTimeMillis() - RETAIN_MILLIS;
+		synchronized (submissions) {
+			for (Iterator<Submission> it = submissions.values().iterator(); it.hasNext();) {
+				Submission submission = it.next();
+				if (submission.state != OrderSubmission.State.QUEUED && submission.finished < before) it.remove();
+			}
+		}
+	}
+
+}
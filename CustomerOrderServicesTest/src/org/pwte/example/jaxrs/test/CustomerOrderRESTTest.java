@@ -1,9 +1,12 @@
 package org.pwte.example.jaxrs.test;
 
 import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.HashSet;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Locale;
 import java.util.Set;
 
 import javax.naming.Context;
@@ -238,7 +241,74 @@ public class CustomerOrderRESTTest extends TestCase {
 		
 	}
 	
-	public void testOrderHistory() throws IOException
+	public void testIdempotencyKeyReplays() throws IOException
+	{
+		RestClient client = new RestClient(clientConfig);
+		RestClient clientTest = new RestClient();
+		String key = "test-" + System.currentTimeMillis();
+		
+		Resource liTest = clientTest.resource(urlTestPrefix+"sampleJSON/LineItem1.json");
+		JSONObject li1 = liTest.accept("application/json").get(JSONObject.class);
+		
+		Resource addTest = client.resource(urlPrefix + "jaxrs/Customer/OpenOrder/LineItem");
+		ClientResponse clientResponse = addTest.header("Idempotency-Key", key + "-add").accept("application/json").contentType("application/json").post(li1.serialize());
+		assertEquals(200, clientResponse.getStatusCode());
+		String version = clientResponse.getHeaders().get("ETag").get(0);
+		JSONObject openOrder = clientResponse.getEntity(JSONObject.class);
+		
+		//The retry is answered with the first response instead of adding again
+		addTest = client.resource(urlPrefix + "jaxrs/Customer/OpenOrder/LineItem");
+		clientResponse = addTest.header("Idempotency-Key", key + "-add").accept("application/json").contentType("application/json").post(li1.serialize());
+		assertEquals(200, clientResponse.getStatusCode());
+		assertEquals(version, clientResponse.getHeaders().get("ETag").get(0));
+		JSONObject replayed = clientResponse.getEntity(JSONObject.class);
+		assertEquals(openOrder.get("total"), replayed.get("total"));
+		assertEquals(((JSONArray)openOrder.get("lineitems")).size(), ((JSONArray)replayed.get("lineitems")).size());
+		
+		//The same key for a different request
+		liTest = clientTest.resource(urlTestPrefix+"sampleJSON/LineItem2.json");
+		JSONObject li2 = liTest.accept("application/json").get(JSONObject.class);
+		addTest = client.resource(urlPrefix + "jaxrs/Customer/OpenOrder/LineItem");
+		clientResponse = addTest.header("Idempotency-Key", key + "-add").accept("application/json").contentType("application/json").post(li2.serialize());
+		assertEquals(422, clientResponse.getStatusCode());
+		
+		Resource submitTest = client.resource(urlPrefix + "jaxrs/Customer/OpenOrder");
+		clientResponse = submitTest.header("If-Match",version).header("Idempotency-Key", key + "-submit").post(null);
+		assertEquals(204, clientResponse.getStatusCode());
+		submitTest = client.resource(urlPrefix + "jaxrs/Customer/OpenOrder");
+		clientResponse = submitTest.header("If-Match",version).header("Idempotency-Key", key + "-submit").post(null);
+		assertEquals(204, clientResponse.getStatusCode());
+	}
+	
+	public void testLaneStatistics() throws IOException
+	{
+		RestClient client = new RestClient(clientConfig);
+		RestClient clientTest = new RestClient();
+		Resource lanesTest = client.resource(urlPrefix + "jaxrs/Status/lanes");
+		ClientResponse clientResponse = lanesTest.accept("application/json").get();
+		assertEquals(200, clientResponse.getStatusCode());
+		JSONObject lanes = clientResponse.getEntity(JSONObject.class);
+		assertTrue(((Number)lanes.get("lanes")).longValue() > 0);
+		long entered = ((Number)lanes.get("entered")).longValue();
+		
+		//Adding the first line opens the order in the same lane
+		Resource liTest = clientTest.resource(urlTestPrefix+"sampleJSON/LineItem1.json");
+		JSONObject li1 = liTest.accept("application/json").get(JSONObject.class);
+		Resource addTest = client.resource(urlPrefix + "jaxrs/Customer/OpenOrder/LineItem");
+		clientResponse = addTest.accept("application/json").contentType("application/json").post(li1.serialize());
+		assertEquals(200, clientResponse.getStatusCode());
+		String version = clientResponse.getHeaders().get("ETag").get(0);
+		Resource submitTest = client.resource(urlPrefix + "jaxrs/Customer/OpenOrder");
+		clientResponse = submitTest.header("If-Match",version).post(null);
+		assertEquals(204, clientResponse.getStatusCode());
+		
+		lanesTest = client.resource(urlPrefix + "jaxrs/Status/lanes");
+		lanes = lanesTest.accept("application/json").get(JSONObject.class);
+		assertEquals(entered + 2, ((Number)lanes.get("entered")).longValue());
+		assertEquals(0, ((Number)lanes.get("busy")).longValue());
+	}
+	
+	public void testOrderHistory() throws IOException, ParseException
 	{
 		RestClient client = new RestClient(clientConfig);
 		Resource orderHistoryTest = client.resource(urlPrefix + "jaxrs/Customer/Orders");
@@ -247,10 +317,13 @@ public class CustomerOrderRESTTest extends TestCase {
 		assertEquals(200, clientResponse.getStatusCode());
 		int size = orderHistory.size();
 		String lastModified = clientResponse.getHeaders().get("Last-Modified").get(0);
-		
+		String etag = clientResponse.getHeaders().getFirst("ETag");
+		assertNotNull(etag);
 		
 		clientResponse = orderHistoryTest.accept("application/json").header("If-Modified-Since", lastModified).get();
 		assertEquals(304, clientResponse.getStatusCode());
+		clientResponse = orderHistoryTest.accept("application/json").header("If-None-Match", etag).get();
+		assertEquals(304, clientResponse.getStatusCode());
 		
 		testOrderProcess();
 		clientResponse = orderHistoryTest.accept("application/json").header("If-Modified-Since", lastModified).get();
@@ -258,6 +331,11 @@ public class CustomerOrderRESTTest extends TestCase {
 		int newSize = orderHistory.size();
 		assertEquals(newSize,size+1);
 		assertEquals(200, clientResponse.getStatusCode());
+		//Last-Modified is never later than now, even for a change in the same second
+		SimpleDateFormat httpDate = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+		assertTrue(httpDate.parse(clientResponse.getHeaders().getFirst("Last-Modified")).getTime() <= System.currentTimeMillis());
+		clientResponse = orderHistoryTest.accept("application/json").header("If-None-Match", etag).get();
+		assertEquals(200, clientResponse.getStatusCode());
 	}
 	
 	public void testFormMetaData ()
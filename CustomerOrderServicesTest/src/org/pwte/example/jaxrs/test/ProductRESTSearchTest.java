@@ -4,6 +4,7 @@ import javax.naming.Context;
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
 
+import org.apache.wink.client.ClientResponse;
 import org.apache.wink.client.Resource;
 import org.apache.wink.client.RestClient;
 
@@ -38,6 +39,40 @@ public class ProductRESTSearchTest extends TestCase {
 		assertEquals("Episode 6, Luke has the final confrontation with his father!", product.get("description"));
 	}
 
+	public void testProductConditionalGet() {
+		RestClient client = new RestClient();
+		ClientResponse response = client.resource(urlPrefix + "jaxrs/Product/1").accept("application/json").get();
+		assertEquals(200, response.getStatusCode());
+		String etag = response.getHeaders().getFirst("ETag");
+		assertNotNull(etag);
+
+		response = client.resource(urlPrefix + "jaxrs/Product/1").accept("application/json").header("If-None-Match", etag).get();
+		assertEquals(304, response.getStatusCode());
+		assertEquals(etag, response.getHeaders().getFirst("ETag"));
+
+		response = client.resource(urlPrefix + "jaxrs/Category").accept("application/json").header("If-None-Match", etag).get();
+		assertEquals(200, response.getStatusCode());
+	}
+
+	public void testRangedPageConditionalGet() {
+		RestClient client = new RestClient();
+		String page = urlPrefix + "jaxrs/Product?categoryId=1&sort(+price)";
+		ClientResponse response = client.resource(page).accept("application/json").header("Range", "items=0-1").get();
+		assertEquals(200, response.getStatusCode());
+		String etag = response.getHeaders().getFirst("ETag");
+		assertNotNull(etag);
+		assertNotNull(response.getHeaders().getFirst("Content-Range"));
+
+		response = client.resource(page).accept("application/json").header("Range", "items=0-1").header("If-None-Match", etag).get();
+		assertEquals(304, response.getStatusCode());
+		assertNull(response.getHeaders().getFirst("Content-Range"));
+
+		response = client.resource(urlPrefix + "jaxrs/Product/search?q=sony").accept("application/json").get();
+		etag = response.getHeaders().getFirst("ETag");
+		response = client.resource(urlPrefix + "jaxrs/Product/search?q=sony").accept("application/json").header("If-None-Match", etag).get();
+		assertEquals(304, response.getStatusCode());
+	}
+
 	public void testProductListByCategory() {
 		RestClient client = new RestClient();
 		Resource resource = client.resource(urlPrefix + "jaxrs/Product?categoryId=1");
@@ -5,12 +5,24 @@ package org.pwte.example.jpa.test;
 import java.io.IOException;
 import java.io.InputStream;
 import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 
+import javax.ejb.EJBException;
 import javax.naming.Context;
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
+import javax.sql.DataSource;
+import javax.transaction.UserTransaction;
 
 import org.dbunit.DBTestCase;
 import org.dbunit.PropertiesBasedJdbcDatabaseTester;
@@ -23,17 +35,28 @@ import org.dbunit.operation.DatabaseOperation;
 import org.pwte.example.domain.AbstractCustomer;
 import org.pwte.example.domain.Address;
 import org.pwte.example.domain.LineItem;
+import org.pwte.example.domain.LineItemChange;
 import org.pwte.example.domain.Order;
+import org.pwte.example.domain.OrderHistoryPage;
+import org.pwte.example.domain.OrderHistoryVersion;
+import org.pwte.example.domain.OrderSubmission;
+import org.pwte.example.domain.OrderSummary;
 import org.pwte.example.domain.ResidentialCustomer;
 import org.pwte.example.exception.CustomerDoesNotExistException;
 import org.pwte.example.exception.GeneralPersistenceException;
 import org.pwte.example.exception.InvalidQuantityException;
 import org.pwte.example.exception.NoLineItemsException;
 import org.pwte.example.exception.OrderAlreadyOpenException;
+import org.pwte.example.exception.OrderDoesNotExistException;
 import org.pwte.example.exception.OrderModifiedException;
 import org.pwte.example.exception.OrderNotOpenException;
+import org.pwte.example.exception.OutOfStockException;
 import org.pwte.example.exception.ProductDoesNotExistException;
+import org.pwte.example.service.CartStore;
+import org.pwte.example.service.CustomerLanes;
 import org.pwte.example.service.CustomerOrderServices;
+import org.pwte.example.service.InventoryReservations;
+import org.pwte.example.service.SubmitQueue;
 
 
 public class CustomerOrderServicesTest extends DBTestCase{
@@ -41,6 +64,8 @@ public class CustomerOrderServicesTest extends DBTestCase{
 	private CustomerOrderServices customerOrderServices;
 	private int customerId = 2;
 	private int businessCustomerId = 3;
+	/* CartStore.SHARDS */
+	private static final int CART_SHARDS = 16;
 	
 	public CustomerOrderServicesTest(String name)
 	{
@@ -514,6 +539,533 @@ public class CustomerOrderServicesTest extends DBTestCase{
 		}
 	}
 	
+	public void testOrderTotalMaintained() throws CustomerDoesNotExistException, OrderAlreadyOpenException, GeneralPersistenceException, OrderNotOpenException, ProductDoesNotExistException, InvalidQuantityException, NoLineItemsException, OrderModifiedException
+	{
+		int[] productIds = {1, 2, 1, 2, 1};
+		Order order = null;
+		for(int productId:productIds)
+		{
+			LineItem newLine = new LineItem();
+			newLine.setProductId(productId);
+			newLine.setQuantity(2);
+			if(order != null) newLine.setVersion(order.getVersion());
+			order = customerOrderServices.addLineItem(newLine);
+			assertTotal(customerOrderServices.loadCustomer().getOpenOrder());
+		}
+		order = customerOrderServices.removeLineItem(2, order.getVersion());
+		assertTotal(customerOrderServices.loadCustomer().getOpenOrder());
+		customerOrderServices.submit(order.getVersion());
+	}
+	
+	public void testOrderTotalVerification() throws Exception
+	{
+		LineItem newLine = new LineItem();
+		newLine.setProductId(1);
+		newLine.setQuantity(2);
+		Order order = customerOrderServices.addLineItem(newLine);
+		Statement statement = getConnection().getConnection().createStatement();
+		System.setProperty("org.pwte.example.verifyOrderTotals", "true");
+		try
+		{
+			//A change made with verification on checks the total it maintains
+			newLine.setVersion(order.getVersion());
+			order = customerOrderServices.addLineItem(newLine);
+			assertTotal(customerOrderServices.loadCustomer().getOpenOrder());
+			
+			statement.executeUpdate("update orders set total = total + 1 where order_id = " + order.getOrderId());
+			newLine.setVersion(order.getVersion());
+			try
+			{
+				customerOrderServices.addLineItem(newLine);
+				fail("Drifted total not detected");
+			}
+			catch (EJBException e) {
+				assertTrue("Correct Exception",true);
+			}
+		}
+		finally
+		{
+			System.clearProperty("org.pwte.example.verifyOrderTotals");
+			statement.close();
+		}
+	}
+	
+	public void testApplyLineItemChanges() throws CustomerDoesNotExistException, OrderAlreadyOpenException, GeneralPersistenceException, OrderNotOpenException, ProductDoesNotExistException, InvalidQuantityException, NoLineItemsException, OrderModifiedException
+	{
+		List<LineItemChange> changes = new ArrayList<LineItemChange>();
+		changes.add(new LineItemChange(LineItemChange.Operation.ADD, 1, 2));
+		changes.add(new LineItemChange(LineItemChange.Operation.ADD, 2, 1));
+		changes.add(new LineItemChange(LineItemChange.Operation.ADD, 1, 3));
+		Order order = customerOrderServices.applyLineItemChanges(changes, -1);
+		order = customerOrderServices.loadCustomer().getOpenOrder();
+		assertEquals(2, order.getLineitems().size());
+		assertEquals(5, order.findLineItem(1).getQuantity());
+		assertTotal(order);
+		
+		//An invalid change rejects the whole batch
+		changes.clear();
+		changes.add(new LineItemChange(LineItemChange.Operation.REMOVE, 2, 0));
+		changes.add(new LineItemChange(LineItemChange.Operation.ADD, 1, -1));
+		try
+		{
+			customerOrderServices.applyLineItemChanges(changes, order.getVersion());
+			fail("Cannot add negative items");
+		}
+		catch (InvalidQuantityException e) {
+			assertTrue("Correct Error, cannot add negative items",true);
+		}
+		order = customerOrderServices.loadCustomer().getOpenOrder();
+		assertEquals(2, order.getLineitems().size());
+		
+		try
+		{
+			customerOrderServices.applyLineItemChanges(changes, order.getVersion() + 1);
+			fail("Stale version accepted");
+		}
+		catch (OrderModifiedException e) {
+			assertTrue("Correct Exception",true);
+		}
+		
+		changes.clear();
+		changes.add(new LineItemChange(LineItemChange.Operation.REMOVE, 2, 0));
+		changes.add(new LineItemChange(LineItemChange.Operation.SET_QUANTITY, 1, 1));
+		order = customerOrderServices.applyLineItemChanges(changes, order.getVersion());
+		order = customerOrderServices.loadCustomer().getOpenOrder();
+		assertEquals(1, order.getLineitems().size());
+		assertEquals(1, order.findLineItem(1).getQuantity());
+		assertTotal(order);
+		customerOrderServices.submit(order.getVersion());
+	}
+	
+	public void testCustomerLanes() throws Exception
+	{
+		CustomerLanes lanes = CustomerLanes.getInstance();
+		long entered = lanes.getStatistics().get("entered");
+		
+		//The first line opens the order too, in the same transaction and lane
+		LineItem newLine = new LineItem();
+		newLine.setProductId(1);
+		newLine.setQuantity(1);
+		Order order = customerOrderServices.addLineItem(newLine);
+		Map<String, Long> statistics = lanes.getStatistics();
+		assertEquals(entered + 1, statistics.get("entered").longValue());
+		assertEquals(0, statistics.get("busy").longValue());
+		assertEquals(0, statistics.get("queued").longValue());
+		
+		//An unknown product is looked up inside the lane
+		try
+		{
+			customerOrderServices.removeLineItem(-1, order.getVersion());
+			fail("Product does not exist");
+		}
+		catch (ProductDoesNotExistException e) {
+			assertTrue("Correct Exception",true);
+		}
+		assertEquals(entered + 2, lanes.getStatistics().get("entered").longValue());
+		
+		customerOrderServices.submit(order.getVersion());
+		assertEquals(entered + 3, lanes.getStatistics().get("entered").longValue());
+	}
+	
+	public void testCartWriteBehindDefersWrites() throws Exception
+	{
+		CartStore cartStore = lookupCartStore();
+		Statement statement = getConnection().getConnection().createStatement();
+		System.setProperty("org.pwte.example.cartWriteBehind", "true");
+		try
+		{
+			LineItem newLine = new LineItem();
+			newLine.setProductId(1);
+			newLine.setQuantity(2);
+			Order order = customerOrderServices.addLineItem(newLine);
+			String version = "select version from orders where order_id = " + order.getOrderId();
+			//The change is ahead of the inserted row, and its write moves the row on
+			assertTrue(queryLong(statement, version) < order.getVersion());
+			newLine.setProductId(2);
+			newLine.setQuantity(1);
+			newLine.setVersion(order.getVersion());
+			order = customerOrderServices.addLineItem(newLine);
+			String lines = "select count(*) from line_item where order_id = " + order.getOrderId();
+			//The order is inserted, but its lines are only in the cart
+			assertEquals(0, queryLong(statement, lines));
+			
+			assertEquals(1, flushCarts(cartStore));
+			assertEquals(2, queryLong(statement, lines));
+			assertEquals(order.getVersion(), queryLong(statement, version));
+			assertEquals(0, flushCarts(cartStore));
+			
+			//A later change waits for the submit
+			newLine.setVersion(order.getVersion());
+			order = customerOrderServices.addLineItem(newLine);
+			String quantity = "select quantity from line_item where order_id = " + order.getOrderId() + " and product_id = 2";
+			assertEquals(1, queryLong(statement, quantity));
+			customerOrderServices.submit(order.getVersion());
+			assertEquals(2, queryLong(statement, quantity));
+			assertNull(cartStore.get(customerId));
+		}
+		finally
+		{
+			cartStore.evict(customerId);
+			System.clearProperty("org.pwte.example.cartWriteBehind");
+			statement.close();
+		}
+	}
+	
+	public void testCartWriteBehindConflictDropsCart() throws Exception
+	{
+		CartStore cartStore = lookupCartStore();
+		Statement statement = getConnection().getConnection().createStatement();
+		System.setProperty("org.pwte.example.cartWriteBehind", "true");
+		try
+		{
+			LineItem newLine = new LineItem();
+			newLine.setProductId(1);
+			newLine.setQuantity(1);
+			Order order = customerOrderServices.addLineItem(newLine);
+			assertEquals(1, flushCarts(cartStore));
+			
+			//Another server changes the order after the cart was written
+			statement.executeUpdate("update orders set version = version + 1 where order_id = " + order.getOrderId());
+			long conflicts = cartStore.getStatistics().get("conflicts");
+			newLine.setVersion(order.getVersion());
+			customerOrderServices.addLineItem(newLine);
+			assertEquals(0, flushCarts(cartStore));
+			assertEquals(conflicts + 1, cartStore.getStatistics().get("conflicts").longValue());
+			assertNull(cartStore.get(customerId));
+			
+			//The order is read again without the dropped change
+			Order reloaded = customerOrderServices.loadCustomer().getOpenOrder();
+			assertEquals(order.getVersion() + 1, reloaded.getVersion());
+			assertEquals(1, reloaded.findLineItem(1).getQuantity());
+		}
+		finally
+		{
+			cartStore.evict(customerId);
+			System.clearProperty("org.pwte.example.cartWriteBehind");
+			statement.close();
+		}
+	}
+	
+	public void testCartWriteBehindRollbackKeepsChanges() throws Exception
+	{
+		CartStore cartStore = lookupCartStore();
+		Statement statement = getConnection().getConnection().createStatement();
+		System.setProperty("org.pwte.example.cartWriteBehind", "true");
+		try
+		{
+			LineItem newLine = new LineItem();
+			newLine.setProductId(1);
+			newLine.setQuantity(1);
+			Order order = customerOrderServices.addLineItem(newLine);
+			String lines = "select count(*) from line_item where order_id = " + order.getOrderId();
+			
+			UserTransaction transaction = (UserTransaction)new InitialContext().lookup("java:comp/UserTransaction");
+			transaction.begin();
+			try
+			{
+				cartStore.flush(customerId);
+			}
+			finally
+			{
+				transaction.rollback();
+			}
+			assertEquals(0, queryLong(statement, lines));
+			
+			//The rolled back write is still owed
+			assertEquals(1, flushCarts(cartStore));
+			assertEquals(1, queryLong(statement, lines));
+		}
+		finally
+		{
+			cartStore.evict(customerId);
+			System.clearProperty("org.pwte.example.cartWriteBehind");
+			statement.close();
+		}
+	}
+	
+	private static CartStore lookupCartStore() throws NamingException
+	{
+		return (CartStore)new InitialContext().lookup("java:comp/env/ejb/CartStore");
+	}
+	
+	/* Writes every shard of the store, as its timer does */
+	private static int flushCarts(CartStore cartStore)
+	{
+		int written = 0;
+		for(int shard = 0; shard < CART_SHARDS; shard++)
+		{
+			written += cartStore.flushShard(shard);
+		}
+		return written;
+	}
+	
+	private static long queryLong(Statement statement, String sql) throws SQLException
+	{
+		ResultSet row = statement.executeQuery(sql);
+		try
+		{
+			assertTrue(row.next());
+			return row.getLong(1);
+		}
+		finally
+		{
+			row.close();
+		}
+	}
+	
+	private static void assertTotal(Order order)
+	{
+		BigDecimal total = new BigDecimal(0);
+		for(LineItem item:order.getLineitems())
+		{
+			total = total.add(item.getAmount()).setScale(2,RoundingMode.HALF_UP);
+		}
+		assertEquals(total, order.getTotal());
+	}
+	
+	public void testOrderHistoryLastUpdatedTime() throws Exception
+	{
+		Date before = customerOrderServices.getOrderHistoryLastUpdatedTime();
+		OrderHistoryVersion beforeVersion = customerOrderServices.getOrderHistoryVersion();
+		LineItem newLine = new LineItem();
+		newLine.setProductId(1);
+		newLine.setQuantity(1);
+		Order order = customerOrderServices.addLineItem(newLine);
+		customerOrderServices.submit(order.getVersion());
+		
+		Date after = customerOrderServices.getOrderHistoryLastUpdatedTime();
+		OrderHistoryVersion afterVersion = customerOrderServices.getOrderHistoryVersion();
+		assertNotNull(after);
+		if(before != null) assertFalse(after.before(before));
+		//Never later than now, so a change in the same second keeps the second
+		assertTrue(after.getTime() <= System.currentTimeMillis());
+		//Whole seconds, like the HTTP dates it is compared with
+		assertEquals(0, after.getTime() % 1000);
+		//The tag tells the versions apart even when the second does not
+		assertFalse(afterVersion.getTag().equals(beforeVersion.getTag()));
+		if(before != null && after.equals(before)) assertFalse(afterVersion.isLastModifiedDistinct());
+	}
+	
+	public void testLoadOrderHistoryPages() throws Exception
+	{
+		int[] quantities = {1, 2, 3};
+		for(int quantity:quantities)
+		{
+			LineItem newLine = new LineItem();
+			newLine.setProductId(1);
+			newLine.setQuantity(quantity);
+			Order order = customerOrderServices.addLineItem(newLine);
+			customerOrderServices.submit(order.getVersion());
+		}
+		
+		OrderHistoryPage page = customerOrderServices.loadOrderHistory(null, 2);
+		assertEquals(2, page.getOrders().size());
+		assertNotNull(page.getNext());
+		OrderSummary newest = page.getOrders().get(0);
+		assertEquals(1, newest.getLineCount());
+		assertFalse(newest.getSubmittedTime().before(page.getOrders().get(1).getSubmittedTime()));
+		
+		OrderHistoryPage last = customerOrderServices.loadOrderHistory(page.getNext(), 2);
+		assertEquals(1, last.getOrders().size());
+		assertNull(last.getNext());
+		
+		List<LineItem> lineItems = customerOrderServices.loadOrderLineItems(newest.getOrderId());
+		assertEquals(1, lineItems.size());
+		assertEquals(3, lineItems.get(0).getQuantity());
+		assertEquals(newest.getTotal(), lineItems.get(0).getAmount());
+		assertNotNull(lineItems.get(0).getProduct().getName());
+		
+		try
+		{
+			customerOrderServices.loadOrderLineItems(-1);
+			fail("Order does not exist");
+		}
+		catch (OrderDoesNotExistException e) {
+			assertTrue("Correct Exception",true);
+		}
+	}
+	
+	public void testSubmitOrderAndLoadSubmission() throws Exception
+	{
+		LineItem newLine = new LineItem();
+		newLine.setProductId(1);
+		newLine.setQuantity(1);
+		Order order = customerOrderServices.addLineItem(newLine);
+		assertEquals(OrderSubmission.State.OPEN, customerOrderServices.loadSubmission(order.getOrderId()).getState());
+		
+		//Asynchronous submission is off in the test deployment
+		OrderSubmission submission = customerOrderServices.submitOrder(order.getVersion());
+		assertEquals(OrderSubmission.State.SUBMITTED, submission.getState());
+		assertEquals(order.getOrderId(), submission.getOrderId());
+		OrderSubmission loaded = customerOrderServices.loadSubmission(order.getOrderId());
+		assertEquals(OrderSubmission.State.SUBMITTED, loaded.getState());
+		assertNotNull(loaded.getSubmittedTime());
+		
+		try
+		{
+			customerOrderServices.loadSubmission(-1);
+			fail("Order does not exist");
+		}
+		catch (OrderDoesNotExistException e) {
+			assertTrue("Correct Exception",true);
+		}
+	}
+	
+	public void testQueuedSubmission() throws Exception
+	{
+		SubmitQueue submitQueue = (SubmitQueue)new InitialContext().lookup("java:comp/env/ejb/SubmitQueue");
+		Statement statement = getConnection().getConnection().createStatement();
+		System.setProperty("org.pwte.example.asyncSubmit", "true");
+		try
+		{
+			LineItem newLine = new LineItem();
+			newLine.setProductId(1);
+			newLine.setQuantity(1);
+			Order order = customerOrderServices.addLineItem(newLine);
+			OrderSubmission submission = customerOrderServices.submitOrder(order.getVersion());
+			assertEquals(OrderSubmission.State.QUEUED, submission.getState());
+			assertEquals(OrderSubmission.State.QUEUED, customerOrderServices.loadSubmission(order.getOrderId()).getState());
+			try
+			{
+				newLine.setVersion(order.getVersion());
+				customerOrderServices.addLineItem(newLine);
+				fail("Queued order changed");
+			}
+			catch (OrderNotOpenException e) {
+				assertTrue("Correct Exception",true);
+			}
+			
+			assertEquals(1, submitQueue.drain());
+			OrderSubmission loaded = customerOrderServices.loadSubmission(order.getOrderId());
+			assertEquals(OrderSubmission.State.SUBMITTED, loaded.getState());
+			assertNotNull(loaded.getSubmittedTime());
+			assertNull(customerOrderServices.loadCustomer().getOpenOrder());
+			
+			//A change made while the order waits fails its submission
+			order = customerOrderServices.addLineItem(newLine);
+			submission = customerOrderServices.submitOrder(order.getVersion());
+			assertEquals(OrderSubmission.State.QUEUED, submission.getState());
+			statement.executeUpdate("update orders set version = version + 1 where order_id = " + order.getOrderId());
+			assertEquals(1, submitQueue.drain());
+			loaded = customerOrderServices.loadSubmission(order.getOrderId());
+			assertEquals(OrderSubmission.State.FAILED, loaded.getState());
+			assertNotNull(loaded.getReason());
+			assertEquals(order.getOrderId(), customerOrderServices.loadCustomer().getOpenOrder().getOrderId());
+			assertEquals(0, submitQueue.drain());
+		}
+		finally
+		{
+			System.clearProperty("org.pwte.example.asyncSubmit");
+			statement.close();
+		}
+	}
+	
+	public void testInventoryReservations() throws Exception
+	{
+		InventoryReservations inventory = lookupInventory();
+		Connection stockConnection = ((DataSource)new InitialContext().lookup("java:comp/env/jdbc/inds")).getConnection();
+		Statement stock = stockConnection.createStatement();
+		String instockSql = "select instock from product where sku = 20";
+		long instock = queryLong(stock, instockSql);
+		boolean written = false;
+		System.setProperty("org.pwte.example.inventoryReservations", "true");
+		try
+		{
+			inventory.load();
+			
+			//More than is available of a product is refused, and nothing is kept
+			LineItem newLine = new LineItem();
+			newLine.setProductId(21);
+			newLine.setQuantity(inventory.getAvailable(21) + 1);
+			try
+			{
+				customerOrderServices.addLineItem(newLine);
+				fail("Short product reserved");
+			}
+			catch (OutOfStockException e) {
+				assertTrue("Correct Exception",true);
+			}
+			assertNull(customerOrderServices.loadCustomer().getOpenOrder());
+			
+			//Removing a line releases what it reserved
+			long available = inventory.getAvailable(20);
+			newLine.setProductId(20);
+			newLine.setQuantity(2);
+			Order order = customerOrderServices.addLineItem(newLine);
+			assertEquals(available - 2, inventory.getAvailable(20).longValue());
+			order = customerOrderServices.removeLineItem(20, order.getVersion());
+			assertEquals(available, inventory.getAvailable(20).longValue());
+			
+			//A submitted order's quantity is written to INSTOCK by the next flush
+			newLine.setQuantity(1);
+			newLine.setVersion(order.getVersion());
+			order = customerOrderServices.addLineItem(newLine);
+			customerOrderServices.submit(order.getVersion());
+			assertEquals(available - 1, inventory.getAvailable(20).longValue());
+			assertEquals(1, inventory.getStatistics().get("pending").longValue());
+			assertEquals(instock, queryLong(stock, instockSql));
+			assertEquals(1, inventory.flush());
+			written = true;
+			assertEquals(instock - 1, queryLong(stock, instockSql));
+			assertEquals(0, inventory.getStatistics().get("pending").longValue());
+			assertEquals(available - 1, inventory.getAvailable(20).longValue());
+		}
+		finally
+		{
+			System.clearProperty("org.pwte.example.inventoryReservations");
+			if(written) stock.executeUpdate("update product set instock = " + instock + ", version = version + 1 where sku = 20");
+			stock.close();
+			stockConnection.close();
+		}
+	}
+	
+	public void testInventoryNeverOversold() throws Exception
+	{
+		InventoryReservations inventory = lookupInventory();
+		Connection stockConnection = ((DataSource)new InitialContext().lookup("java:comp/env/jdbc/inds")).getConnection();
+		Statement stock = stockConnection.createStatement();
+		String instockSql = "select instock from product where sku = 20";
+		long instock = queryLong(stock, instockSql);
+		System.setProperty("org.pwte.example.inventoryReservations", "true");
+		try
+		{
+			inventory.load();
+			LineItem newLine = new LineItem();
+			newLine.setProductId(20);
+			newLine.setQuantity(1);
+			Order order = customerOrderServices.addLineItem(newLine);
+			customerOrderServices.submit(order.getVersion());
+			
+			//Another server sold the rest in the meantime
+			stock.executeUpdate("update product set instock = 0, version = version + 1 where sku = 20");
+			assertEquals(0, inventory.flush());
+			assertEquals(0, queryLong(stock, instockSql));
+			Map<String, Long> statistics = inventory.getStatistics();
+			assertEquals(1, statistics.get("shortProducts").longValue());
+			assertEquals(1, statistics.get("shortUnits").longValue());
+			assertEquals(1, statistics.get("pending").longValue());
+			
+			//Once stock is added it is read back in, and the decrement is written
+			stock.executeUpdate("update product set instock = " + instock + ", version = version + 1 where sku = 20");
+			assertEquals(0, inventory.flush());
+			assertEquals(0, inventory.getStatistics().get("shortUnits").longValue());
+			assertEquals(1, inventory.flush());
+			assertEquals(instock - 1, queryLong(stock, instockSql));
+		}
+		finally
+		{
+			System.clearProperty("org.pwte.example.inventoryReservations");
+			stock.executeUpdate("update product set instock = " + instock + ", version = version + 1 where sku = 20");
+			stock.close();
+			stockConnection.close();
+		}
+	}
+	
+	private static InventoryReservations lookupInventory() throws NamingException
+	{
+		return (InventoryReservations)new InitialContext().lookup("java:comp/env/ejb/InventoryReservations");
+	}
+	
 	public void testUpdateAddress() throws CustomerDoesNotExistException, GeneralPersistenceException
 	{
 		Address address = new Address();
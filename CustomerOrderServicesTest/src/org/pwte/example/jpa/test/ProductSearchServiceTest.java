@@ -1,6 +1,10 @@
 package org.pwte.example.jpa.test;
 
 import java.io.InputStream;
+import java.math.BigDecimal;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
@@ -17,7 +21,13 @@ import org.dbunit.dataset.ReplacementDataSet;
 import org.dbunit.dataset.xml.FlatXmlDataSet;
 import org.dbunit.operation.DatabaseOperation;
 import org.pwte.example.domain.Category;
+import org.pwte.example.domain.FacetResult;
 import org.pwte.example.domain.Product;
+import org.pwte.example.domain.ProductBatch;
+import org.pwte.example.domain.ProductPage;
+import org.pwte.example.domain.Suggestion;
+import org.pwte.example.service.CatalogChangeMonitor;
+import org.pwte.example.service.CategoryTree;
 import org.pwte.example.service.ProductSearchService;
 
 public class ProductSearchServiceTest extends DBTestCase {
@@ -173,6 +183,8 @@ public class ProductSearchServiceTest extends DBTestCase {
 			ITable expectedProductTable = expectedProductDataSet.getTable("PRODUCT");
 			
 			assertEquals(expectedProductTable.getRowCount(),products.size());
+			//Listings carry the summary columns only, not the category graph
+			for(Product product:products) assertNull(product.getCategories());
 			for(int i= 0; i < products.size(); i++)
 			{
 				if(Integer.parseInt((String)expectedProductTable.getValue(0,"PRODUCT_ID"))==products.get(i).getProductId())
@@ -213,6 +225,141 @@ public class ProductSearchServiceTest extends DBTestCase {
 		}
 	}
 
+	public void testLoadProducts() {
+		ProductBatch batch = productSearchService.loadProducts(new int[]{21, 999, 1, 21, 53});
+		assertEquals(3,batch.getProducts().size());
+		assertEquals(21,batch.getProducts().get(0).getProductId());
+		assertEquals(1,batch.getProducts().get(1).getProductId());
+		assertEquals(53,batch.getProducts().get(2).getProductId());
+		assertEquals(1,batch.getMissingIds().size());
+		assertEquals(Integer.valueOf(999),batch.getMissingIds().get(0));
+	}
+
+	public void testLoadProductsByCategoryPaged() {
+		try
+		{
+			InputStream parentCatFile = this.getClass().getResourceAsStream ("LoadProductByCatParent.xml");
+			ITable expectedParentTable = new FlatXmlDataSet(parentCatFile).getTable("CATEGORY");
+			int categoryId = Integer.parseInt((String)expectedParentTable.getValue(0,"CAT_ID"));
+			InputStream expectedParentCatFile = this.getClass().getResourceAsStream ("ExpectedCatsByParentCat.xml");
+			ITable expectedProductTable = new FlatXmlDataSet(expectedParentCatFile).getTable("PRODUCT");
+
+			List<Product> products = new ArrayList<Product>();
+			ProductPage page;
+			do
+			{
+				page = productSearchService.loadProductsByCategory(categoryId, ProductPage.Sort.PRICE, false, products.size(), 4);
+				assertEquals(expectedProductTable.getRowCount(),page.getTotal());
+				products.addAll(page.getProducts());
+			}
+			while(page.getProducts().size() == 4);
+
+			assertEquals(expectedProductTable.getRowCount(),products.size());
+			for(int i= 1; i < products.size(); i++)
+			{
+				int order = products.get(i-1).getPrice().compareTo(products.get(i).getPrice());
+				assertTrue(order < 0 || (order == 0 && products.get(i-1).getProductId() < products.get(i).getProductId()));
+			}
+		}
+		catch (Exception e)
+		{
+			fail(e.getLocalizedMessage());
+		}
+	}
+
+	public void testSearchProducts() {
+		List<Product> products = productSearchService.searchProducts("sony", 10);
+		assertEquals(2,products.size());
+		//Products matching both terms rank above those matching one
+		products = productSearchService.searchProducts("Episode Luke", 10);
+		assertEquals(3,products.size());
+		assertTrue(products.get(2).getProductId() == 3);
+		assertEquals(1,productSearchService.searchProducts("Episode", 1).size());
+		assertEquals(0,productSearchService.searchProducts("zzz", 10).size());
+	}
+
+	public void testLoadProductFacets() {
+		List<Integer> electronics = Arrays.asList(new Integer[]{10});
+		FacetResult result = productSearchService.loadProductFacets(electronics, new BigDecimal(100), new BigDecimal(500), null, 0, 10);
+		assertEquals(3,result.getTotal());
+		assertEquals(10,result.getProducts().get(0).getProductId());
+		//Category counts ignore the category filter but honour the price filter
+		assertEquals(Integer.valueOf(4),result.getCategoryCounts().get(1));
+		assertEquals(Integer.valueOf(3),result.getCategoryCounts().get(10));
+		result = productSearchService.loadProductFacets(new ArrayList<Integer>(), null, null, "sony", 1, 10);
+		assertEquals(3,result.getTotal());
+		assertEquals(2,result.getProducts().size());
+	}
+
+	public void testSuggest() {
+		List<Suggestion> suggestions = productSearchService.suggest("Son", 10);
+		assertEquals(2,suggestions.size());
+		assertEquals(Suggestion.Type.PRODUCT,suggestions.get(0).getType());
+		//Later words of a name complete too
+		suggestions = productSearchService.suggest("jed", 10);
+		assertEquals(1,suggestions.size());
+		assertEquals(1,suggestions.get(0).getId());
+		suggestions = productSearchService.suggest("mus", 10);
+		assertEquals(Suggestion.Type.CATEGORY,suggestions.get(0).getType());
+		assertEquals(3,suggestions.get(0).getId());
+		assertEquals(0,productSearchService.suggest("zzz", 10).size());
+	}
+
+	public void testCatalogChangePropagation() throws Exception {
+		CatalogChangeMonitor monitor = (CatalogChangeMonitor)new InitialContext().lookup("java:comp/env/ejb/CatalogChangeMonitor");
+		monitor.poll();
+		long otherVersion = productSearchService.getProductVersion(1);
+		long version = productSearchService.getProductVersion(3);
+		Statement statement = getConnection().getConnection().createStatement();
+		try
+		{
+			statement.executeUpdate("update product set name = 'Wookiee Holiday Special' where product_id = 3");
+			monitor.poll();
+			List<Product> products = productSearchService.searchProducts("wookiee", 10);
+			assertEquals(1,products.size());
+			assertEquals(3,products.get(0).getProductId());
+			//Only the changed product is invalidated
+			assertTrue(productSearchService.getProductVersion(3) > version);
+			assertEquals(otherVersion,productSearchService.getProductVersion(1));
+		}
+		finally
+		{
+			statement.executeUpdate("update product set name = 'New Hope' where product_id = 3");
+			statement.close();
+			monitor.poll();
+		}
+		assertEquals(0,productSearchService.searchProducts("wookiee", 10).size());
+	}
+
+	public void testBulkCatalogChangeRefreshesFacets() throws Exception {
+		CatalogChangeMonitor monitor = (CatalogChangeMonitor)new InitialContext().lookup("java:comp/env/ejb/CatalogChangeMonitor");
+		monitor.poll();
+		List<Integer> electronics = Arrays.asList(new Integer[]{10});
+		assertEquals(3,productSearchService.loadProductFacets(electronics, new BigDecimal(100), new BigDecimal(500), null, 0, 10).getTotal());
+		Statement statement = getConnection().getConnection().createStatement();
+		try
+		{
+			statement.executeUpdate("update product set price = price * 10 where product_id in (10, 20, 21)");
+			//Enough further changes to take the poll over to a full reload
+			for(int productId = 1000; productId <= 1200; productId++)
+			{
+				statement.executeUpdate("insert into catalog_change (entity_type, entity_id) values ('P', " + productId + ")");
+			}
+			monitor.poll();
+			FacetResult result = productSearchService.loadProductFacets(electronics, new BigDecimal(100), new BigDecimal(500), null, 0, 10);
+			assertEquals(0,result.getTotal());
+			result = productSearchService.loadProductFacets(electronics, new BigDecimal(1000), new BigDecimal(2000), null, 0, 10);
+			assertEquals(5,result.getTotal());
+		}
+		finally
+		{
+			statement.executeUpdate("update product set price = price / 10 where product_id in (10, 20, 21)");
+			statement.close();
+			monitor.poll();
+		}
+		assertEquals(3,productSearchService.loadProductFacets(electronics, new BigDecimal(100), new BigDecimal(500), null, 0, 10).getTotal());
+	}
+
 	public void testGetTopLevelCategories() {
 		try
 		{
@@ -233,6 +380,28 @@ public class ProductSearchServiceTest extends DBTestCase {
 		}
 	}
 
-	
+	public void testCategoryTree() {
+		try
+		{
+			CategoryTree tree = productSearchService.getCategoryTree();
+			InputStream file = this.getClass().getResourceAsStream ("LoadCategoryChildrenExpectedResults.xml");
+			IDataSet expectedChildrenDataSet = new FlatXmlDataSet(file);
+			ITable expectedChildrenTable = expectedChildrenDataSet.getTable("CATEGORY");
+			int parentId = Integer.parseInt((String)expectedChildrenTable.getValue(0,"PARENT_CAT"));
+			assertEquals(expectedChildrenTable.getRowCount(),tree.getChildren(parentId).size());
+			for(int i = 0; i < expectedChildrenTable.getRowCount();i++)
+			{
+				int categoryId = Integer.parseInt((String)expectedChildrenTable.getValue(i,"CAT_ID"));
+				assertEquals(Integer.valueOf(parentId),tree.getParentId(categoryId));
+				assertEquals(expectedChildrenTable.getValue(i,"CAT_NAME"),tree.getCategory(categoryId).getName());
+				assertSame(tree.getCategory(parentId),tree.getCategory(categoryId).getParent());
+			}
+			assertNull(tree.getParentId(parentId));
+			assertSame(tree,productSearchService.getCategoryTree());
+		}
+		catch (Exception e) {
+			fail(e.getLocalizedMessage());
+		}
+	}
 
 }
@@ -67,7 +67,7 @@ dojo.declare("depot.ProductController",null,
 	},
 	formatImage:function(item)
 	{
-		return dojo.replace("<img  src='{image}' height='100px' width='100px'></img>",{image:item});
+		return dojo.replace("<img  src='{image}?size=100' height='100px' width='100px'></img>",{image:item});
 	},
 	combineData:function(index,item)
 	{
@@ -8,6 +8,7 @@ import javax.ws.rs.core.Application;
 import org.pwte.example.resources.CategoryResource;
 import org.pwte.example.resources.CustomerOrderResource;
 import org.pwte.example.resources.ProductResource;
+import org.pwte.example.resources.StatusResource;
 
 public class CustomerServicesApp extends Application {
 
@@ -19,6 +20,7 @@ public class CustomerServicesApp extends Application {
 		classes.add(CategoryResource.class);
 		classes.add(CustomerOrderResource.class);
 		classes.add(ProductResource.class);
+		classes.add(StatusResource.class);
 		
 		classes.add(org.codehaus.jackson.jaxrs.JacksonJsonProvider.class);
 		
@@ -10,10 +10,11 @@ import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
-import org.pwte.example.domain.Category;
 import org.pwte.example.exception.CategoryDoesNotExist;
 import org.pwte.example.service.ProductSearchService;
 
@@ -21,6 +22,7 @@ import org.pwte.example.service.ProductSearchService;
 public class CategoryResource 
 {
 	@EJB ProductSearchService productSearch;
+	private final JsonResponseCache responseCache = JsonResponseCache.getInstance();
 	
 	public CategoryResource() throws NamingException
 	{
@@ -32,10 +34,17 @@ public class CategoryResource
 	@GET
 	@Path("{id}")
 	@Produces(MediaType.APPLICATION_JSON)
-	public Category loadCategory(@PathParam(value="id") int categoryId)
+	public Response loadCategory(@PathParam(value="id") int categoryId,@Context HttpHeaders headers)
 	{
 		try {
-			return productSearch.loadCategory(categoryId);
+			String key = categoryKey(categoryId);
+			long version = productSearch.getCategoryTree().getVersion();
+			Response.ResponseBuilder response = responseCache.get(key, version, headers);
+			if(response == null)
+			{
+				response = responseCache.put(key, version, productSearch.loadCategory(categoryId), headers);
+			}
+			return response.build();
 		} catch (CategoryDoesNotExist e) {
 			throw new WebApplicationException(Response.Status.NOT_FOUND);
 		}
@@ -43,9 +52,39 @@ public class CategoryResource
 	
 	@GET
 	@Produces(MediaType.APPLICATION_JSON)
-	public List<Category> loadTopLevelCategories()
+	public Response loadTopLevelCategories(@Context HttpHeaders headers)
 	{
-		return productSearch.getTopLevelCategories();
+		String key = "Category";
+		long version = productSearch.getCategoryTree().getVersion();
+		Response.ResponseBuilder response = responseCache.get(key, version, headers);
+		if(response == null)
+		{
+			response = responseCache.put(key, version, productSearch.getTopLevelCategories(), headers);
+		}
+		return response.build();
+	}
+	
+	/**
+	 * Caches the responses for the top-level categories and the given
+	 * categories ahead of the first requests for them.
+	 */
+	void prime(List<Integer> categoryIds)
+	{
+		long version = productSearch.getCategoryTree().getVersion();
+		responseCache.prime("Category", version, productSearch.getTopLevelCategories());
+		for(Integer categoryId:categoryIds)
+		{
+			try {
+				responseCache.prime(categoryKey(categoryId), version, productSearch.loadCategory(categoryId));
+			} catch (CategoryDoesNotExist e) {
+				// Deleted since the category tree was read
+			}
+		}
+	}
+	
+	private static String categoryKey(int categoryId)
+	{
+		return "Category/" + categoryId;
 	}
 	
 }
\ No newline at end of file
@@ -1,7 +1,6 @@
 package org.pwte.example.resources;
 
 import java.net.URI;
-import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -13,29 +12,42 @@ import javax.naming.InitialContext;
 import javax.naming.NamingException;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
 import javax.ws.rs.POST;
 import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.SecurityContext;
 
 import org.pwte.example.domain.AbstractCustomer;
 import org.pwte.example.domain.Address;
 import org.pwte.example.domain.BusinessCustomer;
 import org.pwte.example.domain.LineItem;
+import org.pwte.example.domain.LineItemChange;
 import org.pwte.example.domain.Order;
+import org.pwte.example.domain.OrderHistoryVersion;
+import org.pwte.example.domain.OrderSubmission;
 import org.pwte.example.exception.CustomerDoesNotExistException;
 import org.pwte.example.exception.GeneralPersistenceException;
 import org.pwte.example.exception.InvalidQuantityException;
+import org.pwte.example.exception.NoLineItemsException;
+import org.pwte.example.exception.OrderDoesNotExistException;
 import org.pwte.example.exception.OrderModifiedException;
+import org.pwte.example.exception.OrderNotOpenException;
+import org.pwte.example.exception.OutOfStockException;
 import org.pwte.example.exception.ProductDoesNotExistException;
+import org.pwte.example.exception.SubmitQueueFullException;
 import org.pwte.example.service.CustomerOrderServices;
 
 import com.ibm.json.java.JSONArray;
@@ -44,7 +56,11 @@ import com.ibm.json.java.JSONObject;
 @Path("/Customer")
 @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
 public class CustomerOrderResource {
+	private static final int MAX_HISTORY_PAGE = 100;
+	private static final int SUBMIT_RETRY_SECONDS = 1;
+	
 	CustomerOrderServices customerOrderServices = null;
+	private final IdempotentResponses idempotentResponses = IdempotentResponses.getInstance();
 	
 	public CustomerOrderResource() 
 	{
@@ -97,9 +113,11 @@ public class CustomerOrderResource {
 	@Path("/OpenOrder/LineItem")
 	@Consumes(MediaType.APPLICATION_JSON)
 	@Produces(MediaType.APPLICATION_JSON)
-	public Response addLineItem(LineItem lineItem,@Context HttpHeaders headers)
+	public Response addLineItem(LineItem lineItem,@Context HttpHeaders headers,@Context SecurityContext security)
 	{
-		
+		String user = security.getUserPrincipal().getName();
+		String key = IdempotentResponses.key(headers.getRequestHeader(IdempotentResponses.HEADER));
+		boolean completed = false;
 		try {
 			List<String> matchHeaders = headers.getRequestHeader("If-Match");
 			if((matchHeaders != null) && (matchHeaders.size()>0))
@@ -107,9 +125,20 @@ public class CustomerOrderResource {
 				
 				lineItem.setVersion(new Long(matchHeaders.get(0)));
 			}
+			if(key != null)
+			{
+				Response replay = idempotentResponses.begin(user, key, "POST LineItem " + lineItem.getProductId() + " " + lineItem.getQuantity() + " " + matchHeaders);
+				if(replay != null)
+				{
+					completed = true;
+					return replay;
+				}
+			}
 			Order openOrder = customerOrderServices.addLineItem(lineItem);
 			System.out.println("Open Order -> " + openOrder.getVersion());
-			return Response.ok(openOrder).header("ETag", openOrder.getVersion()).location(new URI("Customer")).build();
+			Response response = Response.ok(openOrder).header("ETag", openOrder.getVersion()).location(new URI("Customer")).build();
+			completed = true;
+			return key == null ? response : idempotentResponses.complete(user, key, response);
 		} catch (CustomerDoesNotExistException e) {
 			throw new WebApplicationException(Status.NOT_FOUND);
 		} catch (ProductDoesNotExistException e) {
@@ -118,10 +147,18 @@ public class CustomerOrderResource {
 			throw new WebApplicationException(Status.BAD_REQUEST);
 		} catch (OrderModifiedException e) {
 			throw new WebApplicationException(Status.PRECONDITION_FAILED);
-		} 
+		} catch (OutOfStockException e) {
+			throw new WebApplicationException(Status.CONFLICT);
+		} catch (OrderNotOpenException e) {
+			//Waiting in the submit queue
+			throw new WebApplicationException(Status.CONFLICT);
+		}
 		catch (Exception e) {
 			throw new WebApplicationException(e);
 		}
+		finally {
+			if(key != null && !completed) idempotentResponses.abandon(user, key);
+		}
 		
 	}
 	
@@ -148,24 +185,97 @@ public class CustomerOrderResource {
 			throw new WebApplicationException(Status.NOT_FOUND);
 		} catch (OrderModifiedException e) {
 			throw new WebApplicationException(Status.PRECONDITION_FAILED);
-		} 
+		} catch (OrderNotOpenException e) {
+			//No open order, or it is waiting in the submit queue
+			throw new WebApplicationException(Status.CONFLICT);
+		}
 		catch (Exception e) {
 			throw new WebApplicationException(e);
 		}
 		
 	}
 	
+	/**
+	 * Applies a list of line item changes to the open order in one
+	 * transaction. An If-Match with the order's ETag is required once an
+	 * order is open.
+	 */
+	@PATCH
+	@Path("/OpenOrder")
+	@Consumes(MediaType.APPLICATION_JSON)
+	@Produces(MediaType.APPLICATION_JSON)
+	public Response changeLineItems(List<LineItemChange> changes,@Context HttpHeaders headers)
+	{
+		if(changes == null || changes.isEmpty()) throw new WebApplicationException(Status.BAD_REQUEST);
+		for(LineItemChange change:changes)
+		{
+			if(change == null || change.getOperation() == null) throw new WebApplicationException(Status.BAD_REQUEST);
+		}
+		try {
+			long version = -1;
+			List<String> matchHeaders = headers.getRequestHeader("If-Match");
+			if((matchHeaders != null) && (matchHeaders.size()>0))
+			{
+				version = Long.parseLong(matchHeaders.get(0).trim());
+			}
+			Order openOrder = customerOrderServices.applyLineItemChanges(changes, version);
+			return Response.ok(openOrder).header("ETag", openOrder.getVersion()).build();
+		} catch (CustomerDoesNotExistException e) {
+			throw new WebApplicationException(Status.NOT_FOUND);
+		} catch (ProductDoesNotExistException e) {
+			throw new WebApplicationException(Status.NOT_FOUND);
+		} catch (InvalidQuantityException e) {
+			throw new WebApplicationException(Status.BAD_REQUEST);
+		} catch (NumberFormatException e) {
+			throw new WebApplicationException(Status.BAD_REQUEST);
+		} catch (NoLineItemsException e) {
+			throw new WebApplicationException(Status.CONFLICT);
+		} catch (OutOfStockException e) {
+			throw new WebApplicationException(Status.CONFLICT);
+		} catch (OrderModifiedException e) {
+			throw new WebApplicationException(Status.PRECONDITION_FAILED);
+		} catch (OrderNotOpenException e) {
+			//No open order, or it is waiting in the submit queue
+			throw new WebApplicationException(Status.CONFLICT);
+		}
+		catch (Exception e) {
+			throw new WebApplicationException(e);
+		}
+	}
+	
 	@POST
 	@Path("/OpenOrder")
-	public Response submitOrder(@Context HttpHeaders headers)
+	public Response submitOrder(@Context HttpHeaders headers,@Context SecurityContext security)
 	{
+		String user = security.getUserPrincipal().getName();
+		String key = IdempotentResponses.key(headers.getRequestHeader(IdempotentResponses.HEADER));
+		boolean completed = false;
 		try
 		{
 			List<String> matchHeaders = headers.getRequestHeader("If-Match");
 			if((matchHeaders != null) && (matchHeaders.size()>0))
 			{
-				customerOrderServices.submit(new Long(matchHeaders.get(0)));
-				return Response.noContent().build();
+				if(key != null)
+				{
+					Response replay = idempotentResponses.begin(user, key, "POST Submit " + matchHeaders);
+					if(replay != null)
+					{
+						completed = true;
+						return replay;
+					}
+				}
+				OrderSubmission submission = customerOrderServices.submitOrder(Long.parseLong(matchHeaders.get(0).trim()));
+				Response response;
+				if(submission.getState() == OrderSubmission.State.QUEUED)
+				{
+					response = Response.status(Status.ACCEPTED).entity(submission).location(new URI("Customer/Submissions/" + submission.getOrderId())).build();
+				}
+				else
+				{
+					response = Response.noContent().build();
+				}
+				completed = true;
+				return key == null ? response : idempotentResponses.complete(user, key, response);
 			}
 			else
 			{
@@ -178,40 +288,76 @@ public class CustomerOrderResource {
 		catch (OrderModifiedException e) {
 			throw new WebApplicationException(Status.PRECONDITION_FAILED);
 		} 
+		catch (OutOfStockException e) {
+			throw new WebApplicationException(Status.CONFLICT);
+		}
+		catch (SubmitQueueFullException e) {
+			throw new WebApplicationException(Response.status(Status.SERVICE_UNAVAILABLE).header("Retry-After", SUBMIT_RETRY_SECONDS).build());
+		}
+		catch (NumberFormatException e) {
+			throw new WebApplicationException(Status.BAD_REQUEST);
+		}
 		catch (Exception e) {
 			throw new WebApplicationException(e);
 		}
+		finally {
+			if(key != null && !completed) idempotentResponses.abandon(user, key);
+		}
+	}
+	
+	/**
+	 * How the submission of one of the caller's orders stands, for a client
+	 * whose submit was accepted into the queue.
+	 */
+	@GET
+	@Path("/Submissions/{orderId}")
+	@Produces(MediaType.APPLICATION_JSON)
+	public Response getSubmission(@PathParam(value="orderId") int orderId)
+	{
+		try {
+			OrderSubmission submission = customerOrderServices.loadSubmission(orderId);
+			Response.ResponseBuilder response = Response.ok(submission);
+			if(submission.getState() == OrderSubmission.State.QUEUED) response.header("Retry-After", SUBMIT_RETRY_SECONDS);
+			return response.build();
+		} catch (CustomerDoesNotExistException e) {
+			throw new WebApplicationException(Status.NOT_FOUND);
+		} catch (OrderDoesNotExistException e) {
+			throw new WebApplicationException(Status.NOT_FOUND);
+		} catch (Exception e) {
+			throw new WebApplicationException(e);
+		}
 	}
 	
 	@GET
 	@Path("/Orders")
 	@Produces(MediaType.APPLICATION_JSON)
-	public Response getOrderHistory(@Context HttpHeaders headers)
+	public Response getOrderHistory(@Context Request request,@Context HttpHeaders headers)
 	{
 		try {
-			Date lastModified = customerOrderServices.getOrderHistoryLastUpdatedTime();
-			List<String> matchHeaders = headers.getRequestHeader("If-Modified-Since");
-			
-			if((matchHeaders != null) && (matchHeaders.size()>0))
+			OrderHistoryVersion version = customerOrderServices.getOrderHistoryVersion();
+			EntityTag tag = version == null ? null : new EntityTag(version.getTag());
+			Date lastModified = version == null ? null : version.getLastModified();
+			if(tag != null)
 			{
-				SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
-				Date headerDate = dateFormat.parse(matchHeaders.get(0));
-				if(headerDate.getTime() < lastModified.getTime())
+				Response.ResponseBuilder notModified = null;
+				List<String> noneMatch = headers.getRequestHeader("If-None-Match");
+				if((noneMatch != null) && (noneMatch.size()>0))
 				{
-					Set<Order> orders = customerOrderServices.loadCustomerHistory();
-					return Response.ok(orders).lastModified(lastModified).build();
+					//If-None-Match takes precedence over If-Modified-Since
+					notModified = request.evaluatePreconditions(tag);
 				}
-				else
+				else if(lastModified != null && version.isLastModifiedDistinct())
 				{
-					return Response.notModified().build();
+					//Compares If-Modified-Since as an HTTP date
+					notModified = request.evaluatePreconditions(lastModified);
 				}
+				if(notModified != null) return notModified.tag(tag).build();
 			}
-			else
-			{
-				Set<Order> orders = customerOrderServices.loadCustomerHistory();
-				return Response.ok(orders).lastModified(lastModified).build();
-			}
-			
+			Set<Order> orders = customerOrderServices.loadCustomerHistory();
+			Response.ResponseBuilder response = Response.ok(orders);
+			if(tag != null) response.tag(tag);
+			if(lastModified != null) response.lastModified(lastModified);
+			return response.build();
 		} catch (CustomerDoesNotExistException e) {
 			throw new WebApplicationException(Status.NOT_FOUND);
 		} catch (Exception e) {
@@ -219,6 +365,42 @@ public class CustomerOrderResource {
 		}
 	}
 
+	/**
+	 * Summaries of the caller's submitted orders, newest first. The next
+	 * page is requested with the next cursor of the page before it.
+	 */
+	@GET
+	@Path("/OrderHistory")
+	@Produces(MediaType.APPLICATION_JSON)
+	public Response getOrderHistoryPage(@QueryParam("after") String after,@QueryParam("limit") @DefaultValue("20") int limit)
+	{
+		if(limit <= 0 || limit > MAX_HISTORY_PAGE) throw new WebApplicationException(Status.BAD_REQUEST);
+		if(after != null && !after.matches("\\d{1,18}\\.\\d{1,9}")) throw new WebApplicationException(Status.BAD_REQUEST);
+		try {
+			return Response.ok(customerOrderServices.loadOrderHistory(after, limit)).build();
+		} catch (CustomerDoesNotExistException e) {
+			throw new WebApplicationException(Status.NOT_FOUND);
+		} catch (Exception e) {
+			throw new WebApplicationException(e);
+		}
+	}
+	
+	@GET
+	@Path("/OrderHistory/{orderId}/LineItems")
+	@Produces(MediaType.APPLICATION_JSON)
+	public Response getOrderLineItems(@PathParam(value="orderId") int orderId)
+	{
+		try {
+			return Response.ok(customerOrderServices.loadOrderLineItems(orderId)).build();
+		} catch (CustomerDoesNotExistException e) {
+			throw new WebApplicationException(Status.NOT_FOUND);
+		} catch (OrderDoesNotExistException e) {
+			throw new WebApplicationException(Status.NOT_FOUND);
+		} catch (Exception e) {
+			throw new WebApplicationException(e);
+		}
+	}
+
 	@GET
 	@Produces(MediaType.APPLICATION_JSON)
 	@Path("/TypeForm")
@@ -0,0 +1,252 @@
+package org.pwte.example.resources;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+
+import org.codehaus.jackson.map.ObjectMapper;
+
+/**
+ * Process-wide record of the responses to requests that carried an
+ * Idempotency-Key header, so a double click or a client retry gets the
+ * original response, body and ETag included, instead of running the
+ * request again and failing its If-Match.
+ *
+ * Keys belong to the user who sent them. Only successful responses are
+ * kept, for {@link #TTL_MILLIS}; a failed request gives its key up, so a
+ * retry runs it again. A repeat that arrives while the first request is
+ * still running waits for it for up to {@link #WAIT_MILLIS}, woken only
+ * when that key is completed or given up. Reusing a key for a different
+ * request is refused with 422. The most recent {@link #MAX_KEYS_PER_USER}
+ * keys of the {@link #MAX_USERS} most recently active users are held.
+ */
+public class IdempotentResponses
+{
+	public static final String HEADER = "Idempotency-Key";
+	static final int MAX_KEY_LENGTH = 255;
+	static final int MAX_USERS = 10000;
+	static final int MAX_KEYS_PER_USER = 20;
+	static final long TTL_MILLIS = 10 * 60 * 1000;
+	static final long WAIT_MILLIS = 10000;
+	private static final int UNPROCESSABLE_ENTITY = 422;
+	private static final IdempotentResponses INSTANCE = new IdempotentResponses();
+
+	public static IdempotentResponses getInstance()
+	{
+		return INSTANCE;
+	}
+
+	/* Its own monitor guards the fields below and is what repeats of its key wait on */
+	private static class Entry
+	{
+		final String request;
+		final long expires;
+		boolean done;
+		boolean abandoned;
+		int status;
+		byte[] body;
+		final List<Object[]> headers = new ArrayList<Object[]>();
+
+		Entry(String request, long expires)
+		{
+			this.request = request;
+			this.expires = expires;
+		}
+
+		Response replay()
+		{
+			Response.ResponseBuilder response = Response.status(status);
+			if(body != null) response.entity(body).type(MediaType.APPLICATION_JSON_TYPE);
+			for(Object[] header:headers)
+			{
+				response.header((String) header[0], header[1]);
+			}
+			return response.build();
+		}
+	}
+
+	private final ObjectMapper mapper = new ObjectMapper();
+	private final LinkedHashMap<String, LinkedHashMap<String, Entry>> users = new LinkedHashMap<String, LinkedHashMap<String, Entry>>(256, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, LinkedHashMap<String, Entry>> eldest) {
+			return size() > MAX_USERS;
+		}
+	};
+	private long replays;
+
+	/**
+	 * @return the key from the request, or null if it has none
+	 * @throws WebApplicationException 400 if the key is empty or too long
+	 */
+	public static String key(List<String> values)
+	{
+		if(values == null || values.isEmpty()) return null;
+		String key = values.get(0).trim();
+		if(key.length() == 0 || key.length() > MAX_KEY_LENGTH) throw new WebApplicationException(Status.BAD_REQUEST);
+		return key;
+	}
+
+	/**
+	 * Claims the key for the request, unless it was used before.
+	 * @param request what the request asks for, compared with the request
+	 *        the key was first used for
+	 * @return the response to replay, or null if the caller is to run the
+	 *         request and then {@link #complete} or {@link #abandon} the key
+	 */
+	public Response begin(String user, String key, String request)
+	{
+		long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+		while(true)
+		{
+			Entry entry;
+			synchronized (this)
+			{
+				Map<String, Entry> keys = keys(user);
+				entry = keys.get(key);
+				if(entry == null || entry.expires < System.currentTimeMillis())
+				{
+					keys.put(key, new Entry(request, System.currentTimeMillis() + TTL_MILLIS));
+					return null;
+				}
+				if(!entry.request.equals(request)) return Response.status(UNPROCESSABLE_ENTITY).build();
+			}
+			Response replay;
+			synchronized (entry)
+			{
+				//Wait for the first request on this key alone, then look again
+				if(!entry.done && !entry.abandoned)
+				{
+					long now = System.currentTimeMillis();
+					if(now >= deadline) return Response.status(Status.CONFLICT).build();
+					try
+					{
+						entry.wait(deadline - now);
+					}
+					catch (InterruptedException e)
+					{
+						Thread.currentThread().interrupt();
+						return Response.status(Status.CONFLICT).build();
+					}
+				}
+				if(!entry.done) continue;
+				replay = entry.replay();
+			}
+			synchronized (this)
+			{
+				replays++;
+			}
+			return replay;
+		}
+	}
+
+	/**
+	 * Keeps a successful response for replay, encoding its entity as JSON,
+	 * and gives the key up for any other.
+	 * @return the response to send, with the entity as encoded
+	 */
+	public Response complete(String user, String key, Response response)
+	{
+		int status = response.getStatus();
+		if(status < 200 || status >= 300)
+		{
+			abandon(user, key);
+			return response;
+		}
+		byte[] body = null;
+		try
+		{
+			if(response.getEntity() != null) body = mapper.writeValueAsBytes(response.getEntity());
+		}
+		catch (IOException e)
+		{
+			abandon(user, key);
+			throw new WebApplicationException(e);
+		}
+		Entry recorded = new Entry(null, 0);
+		recorded.status = status;
+		recorded.body = body;
+		for(Map.Entry<String, List<Object>> header:response.getMetadata().entrySet())
+		{
+			if(header.getKey().equalsIgnoreCase("Content-Type")) continue;
+			for(Object value:header.getValue())
+			{
+				recorded.headers.add(new Object[] {header.getKey(), value});
+			}
+		}
+		Entry entry;
+		synchronized (this)
+		{
+			entry = keys(user).get(key);
+		}
+		if(entry != null)
+		{
+			synchronized (entry)
+			{
+				if(!entry.done && !entry.abandoned)
+				{
+					entry.status = status;
+					entry.body = body;
+					entry.headers.addAll(recorded.headers);
+					entry.done = true;
+					entry.notifyAll();
+				}
+			}
+		}
+		return recorded.replay();
+	}
+
+	/**
+	 * Gives up a key whose request failed, so a retry runs it again.
+	 */
+	public synchronized void abandon(String user, String key)
+	{
+		Map<String, Entry> keys = users.get(user);
+		if(keys == null) return;
+		Entry entry = keys.get(key);
+		if(entry == null) return;
+		synchronized (entry)
+		{
+			if(!entry.done)
+			{
+				keys.remove(key);
+				entry.abandoned = true;
+				entry.notifyAll();
+			}
+		}
+	}
+
+	private LinkedHashMap<String, Entry> keys(String user)
+	{
+		LinkedHashMap<String, Entry> keys = users.get(user);
+		if(keys == null)
+		{
+			keys = new LinkedHashMap<String, Entry>(MAX_KEYS_PER_USER * 2) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+					return size() > MAX_KEYS_PER_USER;
+				}
+			};
+			users.put(user, keys);
+		}
+		return keys;
+	}
+
+	public synchronized Map<String, Long> getStatistics()
+	{
+		Map<String, Long> statistics = new LinkedHashMap<String, Long>();
+		statistics.put("users", (long) users.size());
+		statistics.put("replays", replays);
+		return statistics;
+	}
+}
@@ -0,0 +1,362 @@
+package org.pwte.example.resources;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import org.codehaus.jackson.map.ObjectMapper;
+
+/**
+ * Process-wide cache of encoded catalog responses.
+ *
+ * Each entry holds the JSON bytes of one resource together with their gzip
+ * encoding and the version of the data they were produced from: that of a
+ * single product, of the category tree, or for listings of the whole
+ * catalog. A hit whose version is still current is written out as is,
+ * without loading or serializing anything. Entries are evicted least
+ * recently used first once the bytes held exceed the budget.
+ *
+ * Every response carries a strong ETag derived from a digest of its JSON,
+ * so the same content has the same tag on every server. The tag of each
+ * resource is remembered separately from its bytes, and far longer, so an
+ * If-None-Match that still matches at the current version is answered
+ * with 304 even after the bytes themselves have been evicted. Responses
+ * not worth caching, such as searches and listing pages, only have their
+ * tag remembered, so they too are revalidated before anything is loaded.
+ */
+public class JsonResponseCache
+{
+	private static final int MAX_BYTES = 16 * 1024 * 1024;
+	private static final int MAX_TAGS = 65536;
+	private static final int MAX_KEY_LENGTH = 256;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String CACHE_CONTROL = "max-age=300, must-revalidate";
+	private static final String GZIP_SUFFIX = "-gzip";
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	private static final JsonResponseCache INSTANCE = new JsonResponseCache(MAX_BYTES, MAX_TAGS);
+
+	public static JsonResponseCache getInstance()
+	{
+		return INSTANCE;
+	}
+
+	private static class Entry
+	{
+		final long version;
+		final String tag;
+		final byte[] json;
+		final byte[] gzip;
+
+		Entry(long version, String tag, byte[] json, byte[] gzip)
+		{
+			this.version = version;
+			this.tag = tag;
+			this.json = json;
+			this.gzip = gzip;
+		}
+
+		int size()
+		{
+			return json.length + gzip.length;
+		}
+	}
+
+	private static class Validator
+	{
+		final long version;
+		final String tag;
+
+		Validator(long version, String tag)
+		{
+			this.version = version;
+			this.tag = tag;
+		}
+	}
+
+	private final ObjectMapper mapper = new ObjectMapper();
+	private final int maxBytes;
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(256, 0.75f, true);
+	private final LinkedHashMap<String, Validator> validators;
+	private long bytes;
+	private long hits;
+	private long misses;
+	private long notModified;
+	private long evictions;
+
+	JsonResponseCache(int maxBytes, final int maxTags)
+	{
+		this.maxBytes = maxBytes;
+		validators = new LinkedHashMap<String, Validator>(256, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Validator> eldest) {
+				return size() > maxTags;
+			}
+		};
+	}
+
+	/**
+	 * @param key the resource, e.g. Product/12
+	 * @param version the current version of the data behind the resource
+	 * @return 304 if the request's If-None-Match still matches, else the
+	 *         cached response, or null if there is none for this version
+	 */
+	public Response.ResponseBuilder get(String key, long version, HttpHeaders headers)
+	{
+		key = shortKey(key);
+		Entry entry;
+		synchronized (this)
+		{
+			Validator validator = validators.get(key);
+			if(validator != null && validator.version == version && matches(headers, validator.tag))
+			{
+				notModified++;
+				return notModified(validator.tag, headers);
+			}
+			entry = entries.get(key);
+			if(entry == null || entry.version != version)
+			{
+				misses++;
+				return null;
+			}
+			hits++;
+		}
+		return respond(entry, headers, null);
+	}
+
+	/**
+	 * Revalidates a resource whose bytes are not cached, before its entity
+	 * is loaded.
+	 * @return 304 if the request's If-None-Match matches the tag remembered
+	 *         for the resource at this version, otherwise null
+	 */
+	public Response.ResponseBuilder revalidate(String key, long version, HttpHeaders headers)
+	{
+		String tag;
+		synchronized (this)
+		{
+			Validator validator = validators.get(shortKey(key));
+			if(validator == null || validator.version != version || !matches(headers, validator.tag)) return null;
+			notModified++;
+			tag = validator.tag;
+		}
+		return notModified(tag, headers);
+	}
+
+	/**
+	 * Encodes the entity, caches it under the given version and returns the
+	 * response for it.
+	 */
+	public Response.ResponseBuilder put(String key, long version, Object entity, HttpHeaders headers)
+	{
+		return respond(store(key, version, entity), headers, null);
+	}
+
+	/**
+	 * Encodes the entity and caches it under the given version ahead of the
+	 * first request for it.
+	 */
+	public void prime(String key, long version, Object entity)
+	{
+		store(key, version, entity);
+	}
+
+	private Entry store(String key, long version, Object entity)
+	{
+		key = shortKey(key);
+		Entry entry = encode(version, entity);
+		synchronized (this)
+		{
+			validators.put(key, new Validator(version, entry.tag));
+			if(entry.size() <= maxBytes)
+			{
+				Entry old = entries.put(key, entry);
+				if(old != null) bytes -= old.size();
+				bytes += entry.size();
+				Iterator<Entry> eldest = entries.values().iterator();
+				while(bytes > maxBytes)
+				{
+					bytes -= eldest.next().size();
+					eldest.remove();
+					evictions++;
+				}
+			}
+		}
+		return entry;
+	}
+
+	/**
+	 * Encodes a response that is not worth caching, such as one page of a
+	 * listing, and remembers its tag under the given version for
+	 * {@link #revalidate}.
+	 */
+	public Response.ResponseBuilder encode(String key, long version, Object entity, HttpHeaders headers)
+	{
+		return encode(key, version, entity, headers, null);
+	}
+
+	/**
+	 * @param entityHeaders headers that describe the entity, such as
+	 *        Content-Range, sent with it but not with a 304; may be null
+	 */
+	public Response.ResponseBuilder encode(String key, long version, Object entity, HttpHeaders headers, Map<String, String> entityHeaders)
+	{
+		Entry entry = encode(version, entity);
+		synchronized (this)
+		{
+			validators.put(shortKey(key), new Validator(version, entry.tag));
+		}
+		return respond(entry, headers, entityHeaders);
+	}
+
+	/* Long keys, such as those listing ids, are held as their digest */
+	private static String shortKey(String key)
+	{
+		return key.length() <= MAX_KEY_LENGTH ? key : "#" + digest(key.getBytes(UTF8));
+	}
+
+	private Entry encode(long version, Object entity)
+	{
+		try
+		{
+			byte[] json = mapper.writeValueAsBytes(entity);
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream(json.length / 4 + 64);
+			GZIPOutputStream gzip = new GZIPOutputStream(buffer);
+			gzip.write(json);
+			gzip.close();
+			return new Entry(version, digest(json), json, buffer.toByteArray());
+		}
+		catch (IOException e)
+		{
+			throw new WebApplicationException(e);
+		}
+	}
+
+	private static String digest(byte[] bytes)
+	{
+		try
+		{
+			byte[] hash = MessageDigest.getInstance("MD5").digest(bytes);
+			StringBuilder tag = new StringBuilder(hash.length * 2);
+			for(byte b:hash)
+			{
+				tag.append(HEX[(b >> 4) & 0xf]).append(HEX[b & 0xf]);
+			}
+			return tag.toString();
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private Response.ResponseBuilder respond(Entry entry, HttpHeaders headers, Map<String, String> entityHeaders)
+	{
+		if(matches(headers, entry.tag))
+		{
+			synchronized (this)
+			{
+				notModified++;
+			}
+			return notModified(entry.tag, headers);
+		}
+		boolean gzip = acceptsGzip(headers);
+		Response.ResponseBuilder response = Response.ok(gzip ? entry.gzip : entry.json, MediaType.APPLICATION_JSON_TYPE)
+				.header("ETag", entityTag(entry.tag, gzip))
+				.header("Cache-Control", CACHE_CONTROL)
+				.header("Vary", "Accept-Encoding");
+		if(gzip) response.header("Content-Encoding", "gzip");
+		if(entityHeaders != null)
+		{
+			for(Map.Entry<String, String> header:entityHeaders.entrySet())
+			{
+				response.header(header.getKey(), header.getValue());
+			}
+		}
+		return response;
+	}
+
+	private static Response.ResponseBuilder notModified(String tag, HttpHeaders headers)
+	{
+		return Response.notModified()
+				.header("ETag", entityTag(tag, acceptsGzip(headers)))
+				.header("Cache-Control", CACHE_CONTROL)
+				.header("Vary", "Accept-Encoding");
+	}
+
+	/*
+	 * The gzip encoding is a different representation, so it gets its own
+	 * strong tag.
+	 */
+	private static String entityTag(String tag, boolean gzip)
+	{
+		return '"' + tag + (gzip ? GZIP_SUFFIX : "") + '"';
+	}
+
+	/*
+	 * A tag handed out for either encoding of the same JSON revalidates both,
+	 * since they only differ in transfer coding.
+	 */
+	private static boolean matches(HttpHeaders headers, String tag)
+	{
+		List<String> values = headers.getRequestHeader(HttpHeaders.IF_NONE_MATCH);
+		if(values == null) return false;
+		for(String value:values)
+		{
+			for(String candidate:value.split(","))
+			{
+				candidate = candidate.trim();
+				if(candidate.equals("*")) return true;
+				if(candidate.startsWith("W/")) candidate = candidate.substring(2);
+				if(candidate.length() < 2 || candidate.charAt(0) != '"') continue;
+				candidate = candidate.substring(1, candidate.length() - 1);
+				if(candidate.endsWith(GZIP_SUFFIX)) candidate = candidate.substring(0, candidate.length() - GZIP_SUFFIX.length());
+				if(candidate.equals(tag)) return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean acceptsGzip(HttpHeaders headers)
+	{
+		List<String> values = headers.getRequestHeader(HttpHeaders.ACCEPT_ENCODING);
+		if(values == null) return false;
+		for(String value:values)
+		{
+			for(String coding:value.split(","))
+			{
+				String[] parts = coding.trim().split(";");
+				if(!"gzip".equalsIgnoreCase(parts[0].trim())) continue;
+				return parts.length < 2 || !parts[1].trim().matches("q=0(\\.0*)?");
+			}
+		}
+		return false;
+	}
+
+	public synchronized Map<String, Long> getStatistics()
+	{
+		Map<String, Long> statistics = new LinkedHashMap<String, Long>();
+		statistics.put("entries", (long) entries.size());
+		statistics.put("bytes", bytes);
+		statistics.put("maxBytes", (long) maxBytes);
+		statistics.put("validators", (long) validators.size());
+		statistics.put("hits", hits);
+		statistics.put("misses", misses);
+		statistics.put("notModified", notModified);
+		statistics.put("evictions", evictions);
+		return statistics;
+	}
+}
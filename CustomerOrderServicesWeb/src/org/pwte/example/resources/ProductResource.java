@@ -1,19 +1,28 @@
 package org.pwte.example.resources;
 
-import java.util.Calendar;
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.ejb.EJB;
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.UriInfo;
 /*
 import org.apache.wink.common.model.atom.AtomContent;
 import org.apache.wink.common.model.atom.AtomEntry;
@@ -22,15 +31,33 @@ import org.apache.wink.common.model.atom.AtomLink;
 import org.apache.wink.common.model.atom.AtomText;
 import org.apache.wink.common.model.atom.AtomTextType;
 */
+import org.pwte.example.domain.FacetResult;
 import org.pwte.example.domain.Product;
+import org.pwte.example.domain.ProductBatch;
+import org.pwte.example.domain.ProductPage;
 import org.pwte.example.exception.ProductDoesNotExistException;
 import org.pwte.example.service.ProductSearchService;
+import org.pwte.example.service.ProductSuggestIndex;
 
 
 @Path("/Product")
 public class ProductResource {
 
+	private static final int MAX_PAGE_SIZE = 100;
+	private static final int MAX_BATCH_SIZE = 1000;
+	private static final int REQUESTED_RANGE_NOT_SATISFIABLE = 416;
+	private static final Pattern RANGE = Pattern.compile("items=(\\d+)-(\\d+)");
+	private static final Pattern SORT = Pattern.compile("sort\\(([ +-]?)(\\w+)\\)");
+	private static final Map<String, ProductPage.Sort> SORT_KEYS = new HashMap<String, ProductPage.Sort>();
+	static
+	{
+		SORT_KEYS.put("id", ProductPage.Sort.ID);
+		SORT_KEYS.put("name", ProductPage.Sort.NAME);
+		SORT_KEYS.put("price", ProductPage.Sort.PRICE);
+	}
+
 	@EJB ProductSearchService productSearch;
+	private final JsonResponseCache responseCache = JsonResponseCache.getInstance();
 		
 		public ProductResource() throws NamingException
 		{
@@ -41,21 +68,17 @@ public class ProductResource {
 		@GET
 		@Path("/{id}")
 		@Produces(MediaType.APPLICATION_JSON)
-		public Response getProduct(@PathParam(value="id") int productId)
+		public Response getProduct(@PathParam(value="id") int productId,@Context HttpHeaders headers)
 		{
 			try {
-				Product product = productSearch.loadProduct(productId);
-			    Calendar now = Calendar.getInstance();
-			    Calendar tomorrow = (Calendar)now.clone();
-			    tomorrow.add(Calendar.DATE, 1);
-			    tomorrow.set(Calendar.HOUR, 0);
-			    tomorrow.set(Calendar.MINUTE, 0);
-			    tomorrow.set(Calendar.SECOND, 0);
-			    tomorrow.set(Calendar.MILLISECOND, 0);
-			    
-			    System.out.println("Expires -> " + tomorrow.getTime());
-			    
-				return Response.ok(product).header("Expires", tomorrow.getTime()).build(); 
+				String key = productKey(productId);
+				long version = productSearch.getProductVersion(productId);
+				Response.ResponseBuilder response = responseCache.get(key, version, headers);
+				if(response == null)
+				{
+					response = responseCache.put(key, version, productSearch.loadProduct(productId), headers);
+				}
+				return response.build();
 			} catch (ProductDoesNotExistException e) {
 				throw new WebApplicationException(Response.Status.NOT_FOUND);
 			}
@@ -96,16 +119,208 @@ public class ProductResource {
 */
 
 		@GET
+		@Path("/search")
+		@Produces(MediaType.APPLICATION_JSON)
+		public Response searchProducts(@QueryParam(value="q") String query,@QueryParam(value="limit") @DefaultValue("10") int limit,@Context HttpHeaders headers)
+		{
+			if(query == null || query.trim().length() == 0 || limit <= 0)
+			{
+				throw new WebApplicationException(Response.Status.BAD_REQUEST);
+			}
+			limit = Math.min(limit, MAX_PAGE_SIZE);
+			String key = "Product/search?q=" + query + "&limit=" + limit;
+			long version = productSearch.getCatalogVersion();
+			Response.ResponseBuilder response = responseCache.revalidate(key, version, headers);
+			if(response == null)
+			{
+				response = responseCache.encode(key, version, productSearch.searchProducts(query, limit), headers);
+			}
+			return response.build();
+		}
+		
+		/**
+		 * Typeahead: the most popular product and category names with a word
+		 * starting with q. Answered from memory only.
+		 */
+		@GET
+		@Path("/suggest")
 		@Produces(MediaType.APPLICATION_JSON)
-		public List<Product> getProductsByCategory(@QueryParam(value="categoryId") int categoryId)
+		public Response suggest(@QueryParam(value="q") String prefix,@QueryParam(value="limit") @DefaultValue("10") int limit,@Context HttpHeaders headers)
 		{
-			System.out.println(categoryId);
+			if(prefix == null || limit <= 0)
+			{
+				throw new WebApplicationException(Response.Status.BAD_REQUEST);
+			}
+			limit = Math.min(limit, ProductSuggestIndex.MAX_SUGGESTIONS);
+			String key = "Product/suggest?q=" + prefix + "&limit=" + limit;
+			long version = productSearch.getSuggestVersion();
+			Response.ResponseBuilder response = responseCache.revalidate(key, version, headers);
+			if(response == null)
+			{
+				response = responseCache.encode(key, version, productSearch.suggest(prefix, limit), headers);
+			}
+			return response.build();
+		}
+		
+		/**
+		 * Faceted navigation: every categoryId argument widens the category
+		 * filter, the price and keyword filters narrow it, and the response
+		 * carries the count each category and price bucket would yield.
+		 */
+		@GET
+		@Path("/facets")
+		@Produces(MediaType.APPLICATION_JSON)
+		public Response getProductFacets(@QueryParam(value="categoryId") List<Integer> categoryIds,@QueryParam(value="minPrice") BigDecimal minPrice,@QueryParam(value="maxPrice") BigDecimal maxPrice,@QueryParam(value="q") String keyword,@QueryParam(value="offset") @DefaultValue("0") int offset,@QueryParam(value="limit") @DefaultValue("20") int limit,@Context HttpHeaders headers)
+		{
+			if(offset < 0 || limit <= 0 || (minPrice != null && maxPrice != null && minPrice.compareTo(maxPrice) > 0))
+			{
+				throw new WebApplicationException(Response.Status.BAD_REQUEST);
+			}
+			limit = Math.min(limit, MAX_PAGE_SIZE);
+			String key = "Product/facets?categoryId=" + categoryIds + "&minPrice=" + minPrice + "&maxPrice=" + maxPrice + "&q=" + keyword + "&offset=" + offset + "&limit=" + limit;
+			long version = productSearch.getCatalogVersion();
+			Response.ResponseBuilder response = responseCache.revalidate(key, version, headers);
+			if(response == null)
+			{
+				FacetResult facets = productSearch.loadProductFacets(categoryIds, minPrice, maxPrice, keyword, offset, limit);
+				response = responseCache.encode(key, version, facets, headers);
+			}
+			return response.build();
+		}
+		
+		/**
+		 * Without a Range header the whole category is returned. With the
+		 * Dojo Range protocol (Range: items=x-y) only that slice is read and
+		 * the response carries Content-Range: items x-y/total. The sort order
+		 * comes from a Dojo style sort(+name), sort(-price) or sort(+id)
+		 * query argument.
+		 * 
+		 * With ids=1,2,3 instead of a category the listed products are
+		 * returned, in that order, along with the ids that were not found.
+		 */
+		@GET
+		@Produces(MediaType.APPLICATION_JSON)
+		public Response getProductsByCategory(@QueryParam(value="categoryId") int categoryId,@QueryParam(value="ids") String ids,@Context HttpHeaders headers,@Context UriInfo uriInfo)
+		{
+			if(ids != null)
+			{
+				String key = "Product?ids=" + ids;
+				long version = productSearch.getCatalogVersion();
+				Response.ResponseBuilder response = responseCache.revalidate(key, version, headers);
+				if(response == null)
+				{
+					response = responseCache.encode(key, version, getProducts(ids), headers);
+				}
+				return response.build();
+			}
 			if(categoryId <= 0)
 			{
 				throw new WebApplicationException(Response.Status.BAD_REQUEST);
 			}
-			return productSearch.loadProductsByCategory(categoryId);
+			List<String> rangeHeaders = headers.getRequestHeader("Range");
+			Matcher range = null;
+			if((rangeHeaders != null) && (rangeHeaders.size()>0))
+			{
+				range = RANGE.matcher(rangeHeaders.get(0).trim());
+			}
+			if(range == null || !range.matches())
+			{
+				String key = listingKey(categoryId);
+				long version = productSearch.getCatalogVersion();
+				Response.ResponseBuilder response = responseCache.get(key, version, headers);
+				if(response == null)
+				{
+					response = responseCache.put(key, version, productSearch.loadProductsByCategory(categoryId), headers);
+				}
+				return response.build();
+			}
+			
+			int start = Integer.parseInt(range.group(1));
+			int end = Integer.parseInt(range.group(2));
+			if(end < start)
+			{
+				return Response.status(REQUESTED_RANGE_NOT_SATISFIABLE).build();
+			}
+			int limit = Math.min(end - start + 1, MAX_PAGE_SIZE);
 			
+			ProductPage.Sort sort = ProductPage.Sort.ID;
+			boolean descending = false;
+			for(String param:uriInfo.getQueryParameters().keySet())
+			{
+				Matcher sortParam = SORT.matcher(param);
+				if(sortParam.matches())
+				{
+					descending = "-".equals(sortParam.group(1));
+					sort = SORT_KEYS.get(sortParam.group(2));
+					if(sort == null) throw new WebApplicationException(Response.Status.BAD_REQUEST);
+					break;
+				}
+			}
+			
+			String key = "Product?categoryId=" + categoryId + "&sort=" + (descending ? "-" : "+") + sort + "&items=" + start + "-" + (start + limit - 1);
+			long version = productSearch.getCatalogVersion();
+			Response.ResponseBuilder response = responseCache.revalidate(key, version, headers);
+			if(response == null)
+			{
+				ProductPage page = productSearch.loadProductsByCategory(categoryId, sort, descending, start, limit);
+				int count = page.getProducts().size();
+				String contentRange = count == 0 ? "items */" + page.getTotal() : "items " + start + "-" + (start + count - 1) + "/" + page.getTotal();
+				response = responseCache.encode(key, version, page.getProducts(), headers, Collections.singletonMap("Content-Range", contentRange));
+			}
+			return response.build();
+		}
+		
+		/**
+		 * Caches the full listings of the given categories and the responses
+		 * for the given products ahead of the first requests for them.
+		 */
+		void prime(List<Integer> categoryIds, List<Integer> productIds)
+		{
+			long version = productSearch.getCatalogVersion();
+			for(Integer categoryId:categoryIds)
+			{
+				responseCache.prime(listingKey(categoryId), version, productSearch.loadProductsByCategory(categoryId));
+			}
+			for(Integer productId:productIds)
+			{
+				try {
+					responseCache.prime(productKey(productId), productSearch.getProductVersion(productId), productSearch.loadProduct(productId));
+				} catch (ProductDoesNotExistException e) {
+					// Deleted since the warm-up
+				}
+			}
+		}
+		
+		private static String productKey(int productId)
+		{
+			return "Product/" + productId;
+		}
+		
+		private static String listingKey(int categoryId)
+		{
+			return "Product?categoryId=" + categoryId;
+		}
+		
+		private ProductBatch getProducts(String ids)
+		{
+			String[] values = ids.split(",");
+			if(values.length > MAX_BATCH_SIZE)
+			{
+				throw new WebApplicationException(Response.Status.BAD_REQUEST);
+			}
+			int[] productIds = new int[values.length];
+			try
+			{
+				for(int i = 0; i < values.length; i++)
+				{
+					productIds[i] = Integer.parseInt(values[i].trim());
+				}
+			}
+			catch (NumberFormatException e)
+			{
+				throw new WebApplicationException(Response.Status.BAD_REQUEST);
+			}
+			return productSearch.loadProducts(productIds);
 		}
 		
 		
@@ -0,0 +1,157 @@
+package org.pwte.example.resources;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.ejb.EJB;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import org.pwte.example.domain.Category;
+import org.pwte.example.domain.WarmupStatus;
+import org.pwte.example.service.CartStore;
+import org.pwte.example.service.CatalogWarmupService;
+import org.pwte.example.service.CustomerLanes;
+import org.pwte.example.service.InventoryReservations;
+import org.pwte.example.service.ProductSearchService;
+
+@Path("/Status")
+public class StatusResource
+{
+	private static final AtomicBoolean responseCachePrimed = new AtomicBoolean();
+
+	@EJB CatalogWarmupService catalogWarmup;
+	@EJB ProductSearchService productSearch;
+	@EJB CartStore cartStore;
+	@EJB InventoryReservations inventory;
+
+	public StatusResource() throws NamingException
+	{
+		//Work around until Java EE 6
+		InitialContext context = new InitialContext();
+		catalogWarmup = (CatalogWarmupService) context.lookup("ejblocal:org.pwte.example.service.CatalogWarmupService");
+		productSearch = (ProductSearchService) context.lookup("ejblocal:org.pwte.example.service.ProductSearchService");
+		cartStore = (CartStore) context.lookup("ejblocal:org.pwte.example.service.CartStore");
+		inventory = (InventoryReservations) context.lookup("ejblocal:org.pwte.example.service.InventoryReservations");
+	}
+
+	/**
+	 * Readiness probe for the load balancer: 503 until the catalog warm-up
+	 * has finished, then 200. The first probe that finds the catalog warm
+	 * also fills the response cache with the hot catalog resources, encoded
+	 * by the same resources real requests use, before answering 200.
+	 */
+	@GET
+	@Path("/ready")
+	@Produces(MediaType.APPLICATION_JSON)
+	public Response getReadiness()
+	{
+		WarmupStatus status = catalogWarmup.getStatus();
+		if(!status.isReady())
+		{
+			return Response.status(Response.Status.SERVICE_UNAVAILABLE).entity(status).build();
+		}
+		if(responseCachePrimed.compareAndSet(false, true))
+		{
+			try
+			{
+				primeResponseCache(status);
+			}
+			catch (NamingException e)
+			{
+				responseCachePrimed.set(false);
+				throw new WebApplicationException(e);
+			}
+		}
+		return Response.ok(status).build();
+	}
+
+	/*
+	 * Only the top two category levels are primed; deeper listings are
+	 * cached by their first request. The probe's own request headers play
+	 * no part.
+	 */
+	private void primeResponseCache(WarmupStatus status) throws NamingException
+	{
+		List<Integer> categoryIds = new ArrayList<Integer>();
+		for(Category top:productSearch.getTopLevelCategories())
+		{
+			categoryIds.add(top.getCategoryID());
+			for(Category child:top.getSubCategories())
+			{
+				categoryIds.add(child.getCategoryID());
+			}
+		}
+		new CategoryResource().prime(categoryIds);
+		new ProductResource().prime(categoryIds, status.getHotProductIds());
+	}
+
+	/**
+	 * Entry count, bytes held, hits, misses and evictions of the catalog
+	 * response cache since startup.
+	 */
+	@GET
+	@Path("/responseCache")
+	@Produces(MediaType.APPLICATION_JSON)
+	public Map<String, Long> getResponseCacheStatistics()
+	{
+		return JsonResponseCache.getInstance().getStatistics();
+	}
+
+	/**
+	 * Users holding Idempotency-Key responses, and how many responses have
+	 * been replayed since startup.
+	 */
+	@GET
+	@Path("/idempotentResponses")
+	@Produces(MediaType.APPLICATION_JSON)
+	public Map<String, Long> getIdempotentResponseStatistics()
+	{
+		return IdempotentResponses.getInstance().getStatistics();
+	}
+
+	/**
+	 * Lanes busy and transactions queued in them now, and how many waited,
+	 * for how long and how many gave up since startup.
+	 */
+	@GET
+	@Path("/lanes")
+	@Produces(MediaType.APPLICATION_JSON)
+	public Map<String, Long> getLaneStatistics()
+	{
+		return CustomerLanes.getInstance().getStatistics();
+	}
+
+	/**
+	 * Write-behind carts held now, and how many were written and how many
+	 * were dropped because their order was changed on another server since
+	 * startup.
+	 */
+	@GET
+	@Path("/carts")
+	@Produces(MediaType.APPLICATION_JSON)
+	public Map<String, Long> getCartStatistics()
+	{
+		return cartStore.getStatistics();
+	}
+
+	/**
+	 * Products counted, units reserved and waiting to be written, and the
+	 * products sold beyond their stock, when inventory reservations are on.
+	 */
+	@GET
+	@Path("/inventory")
+	@Produces(MediaType.APPLICATION_JSON)
+	public Map<String, Long> getInventoryStatistics()
+	{
+		return inventory.getStatistics();
+	}
+}
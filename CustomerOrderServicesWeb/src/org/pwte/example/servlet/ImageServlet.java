@@ -0,0 +1,331 @@
+package org.pwte.example.servlet;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.imageio.ImageIO;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Serves the files under /images, replacing the default servlet for them.
+ *
+ * Every file is indexed once at startup: its content hash becomes a strong
+ * ETag, and for JPEG, PNG and GIF images a scaled-down copy is generated for
+ * each configured thumbnail size, so ?size=100 on a product image returns
+ * an image at most 100 pixels on its longest side instead of the original.
+ * A size that was not generated is answered with the smallest larger one,
+ * or with the original.
+ *
+ * Files up to {@link #MAX_IN_MEMORY} bytes, which includes every thumbnail,
+ * are held in memory; larger ones are copied from disk with
+ * FileChannel.transferTo. A URL carrying the content hash as ?v= is served
+ * as immutable for a year, any other for a day, after which the ETag makes
+ * revalidation a 304.
+ */
+public class ImageServlet extends HttpServlet
+{
+	private static final long serialVersionUID = -2376604582120337946L;
+
+	static final int MAX_IN_MEMORY = 256 * 1024;
+	static final String DEFAULT_SIZES = "64,100,200";
+	static final String IMMUTABLE = "public, max-age=31536000, immutable";
+	static final String REVALIDATE = "public, max-age=86400";
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private static class Image
+	{
+		final String contentType;
+		final String hash;
+		final byte[] bytes;
+		final File file;
+		final long length;
+		/* Thumbnails by their maximum width and height */
+		final TreeMap<Integer, Image> variants = new TreeMap<Integer, Image>();
+
+		Image(String contentType, String hash, byte[] bytes, File file, long length)
+		{
+			this.contentType = contentType;
+			this.hash = hash;
+			this.bytes = bytes;
+			this.file = file;
+			this.length = length;
+		}
+	}
+
+	private final Map<String, Image> images = new HashMap<String, Image>();
+
+	@Override
+	public void init() throws ServletException
+	{
+		String sizes = getInitParameter("sizes");
+		int[] thumbnailSizes = parseSizes(sizes == null ? DEFAULT_SIZES : sizes);
+		Set<?> paths = getServletContext().getResourcePaths("/images/");
+		if(paths == null) return;
+		for(Object entry:paths)
+		{
+			String path = (String) entry;
+			if(path.endsWith("/")) continue;
+			try
+			{
+				load(path, thumbnailSizes);
+			}
+			catch (IOException e)
+			{
+				// Left out; requests for it get 404
+				e.printStackTrace(System.out);
+			}
+		}
+	}
+
+	private void load(String path, int[] thumbnailSizes) throws IOException
+	{
+		String name = path.substring(path.lastIndexOf('/') + 1);
+		String contentType = getServletContext().getMimeType(name);
+		if(contentType == null) contentType = "application/octet-stream";
+		String realPath = getServletContext().getRealPath(path);
+		File file = realPath == null ? null : new File(realPath);
+
+		Image image;
+		byte[] bytes = null;
+		if(file != null && file.isFile() && file.length() > MAX_IN_MEMORY)
+		{
+			image = new Image(contentType, hash(file), null, file, file.length());
+		}
+		else
+		{
+			bytes = read(getServletContext().getResourceAsStream(path));
+			image = new Image(contentType, hash(bytes), bytes, null, bytes.length);
+		}
+
+		String format = imageFormat(name);
+		if(format != null)
+		{
+			//ImageIO.read does not close the stream it is given
+			InputStream in = bytes != null ? new ByteArrayInputStream(bytes) : new FileInputStream(file);
+			BufferedImage original;
+			try
+			{
+				original = ImageIO.read(in);
+			}
+			finally
+			{
+				in.close();
+			}
+			if(original != null)
+			{
+				for(int size:thumbnailSizes)
+				{
+					if(size >= Math.max(original.getWidth(), original.getHeight())) continue;
+					byte[] thumbnail = scale(original, size, format);
+					image.variants.put(size, new Image(contentType, hash(thumbnail), thumbnail, null, thumbnail.length));
+				}
+			}
+		}
+		images.put(name, image);
+	}
+
+	@Override
+	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+	{
+		String name = request.getPathInfo();
+		Image image = name == null ? null : images.get(name.substring(1));
+		if(image == null)
+		{
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+		String size = request.getParameter("size");
+		if(size != null)
+		{
+			try
+			{
+				Map.Entry<Integer, Image> variant = image.variants.ceilingEntry(Integer.parseInt(size));
+				if(variant != null) image = variant.getValue();
+			}
+			catch (NumberFormatException e)
+			{
+				response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+				return;
+			}
+		}
+
+		String etag = '"' + image.hash + '"';
+		response.setHeader("ETag", etag);
+		response.setHeader("Cache-Control", image.hash.equals(request.getParameter("v")) ? IMMUTABLE : REVALIDATE);
+		if(matches(request.getHeader("If-None-Match"), etag))
+		{
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+		response.setContentType(image.contentType);
+		response.setContentLength((int) image.length);
+
+		OutputStream out = response.getOutputStream();
+		if(image.bytes != null)
+		{
+			out.write(image.bytes);
+			return;
+		}
+		FileInputStream in = new FileInputStream(image.file);
+		try
+		{
+			FileChannel channel = in.getChannel();
+			WritableByteChannel target = Channels.newChannel(out);
+			long position = 0;
+			while(position < image.length)
+			{
+				position += channel.transferTo(position, image.length - position, target);
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	private static boolean matches(String ifNoneMatch, String etag)
+	{
+		if(ifNoneMatch == null) return false;
+		for(String candidate:ifNoneMatch.split(","))
+		{
+			candidate = candidate.trim();
+			if(candidate.equals("*") || candidate.equals(etag) || candidate.equals("W/" + etag)) return true;
+		}
+		return false;
+	}
+
+	private static int[] parseSizes(String sizes)
+	{
+		String[] values = sizes.split(",");
+		int[] parsed = new int[values.length];
+		for(int i = 0; i < values.length; i++)
+		{
+			parsed[i] = Integer.parseInt(values[i].trim());
+		}
+		Arrays.sort(parsed);
+		return parsed;
+	}
+
+	private static String imageFormat(String name)
+	{
+		String lower = name.toLowerCase();
+		if(lower.endsWith(".jpg") || lower.endsWith(".jpeg")) return "jpeg";
+		if(lower.endsWith(".png")) return "png";
+		if(lower.endsWith(".gif")) return "gif";
+		return null;
+	}
+
+	/*
+	 * Scales so the longer side is size pixels. JPEG has no alpha channel,
+	 * so it is drawn onto an opaque image.
+	 */
+	private static byte[] scale(BufferedImage original, int size, String format) throws IOException
+	{
+		double ratio = (double) size / Math.max(original.getWidth(), original.getHeight());
+		int width = Math.max(1, (int) Math.round(original.getWidth() * ratio));
+		int height = Math.max(1, (int) Math.round(original.getHeight() * ratio));
+		BufferedImage scaled = new BufferedImage(width, height, "jpeg".equals(format) ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
+		Graphics2D graphics = scaled.createGraphics();
+		try
+		{
+			graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+			graphics.drawImage(original, 0, 0, width, height, null);
+		}
+		finally
+		{
+			graphics.dispose();
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(scaled, format, out);
+		return out.toByteArray();
+	}
+
+	private static byte[] read(InputStream in) throws IOException
+	{
+		try
+		{
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int read;
+			while((read = in.read(buffer)) != -1)
+			{
+				out.write(buffer, 0, read);
+			}
+			return out.toByteArray();
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	private static String hash(byte[] bytes)
+	{
+		MessageDigest digest = sha1();
+		return hex(digest.digest(bytes));
+	}
+
+	private static String hash(File file) throws IOException
+	{
+		MessageDigest digest = sha1();
+		InputStream in = new FileInputStream(file);
+		try
+		{
+			byte[] buffer = new byte[8192];
+			int read;
+			while((read = in.read(buffer)) != -1)
+			{
+				digest.update(buffer, 0, read);
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+		return hex(digest.digest());
+	}
+
+	private static MessageDigest sha1()
+	{
+		try
+		{
+			return MessageDigest.getInstance("SHA-1");
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String hex(byte[] hash)
+	{
+		StringBuilder hex = new StringBuilder(hash.length * 2);
+		for(byte b:hash)
+		{
+			hex.append(HEX[(b >> 4) & 0xf]).append(HEX[b & 0xf]);
+		}
+		return hex.toString();
+	}
+}